@@ -0,0 +1,50 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.DCPU;
+import org.megastage.emulator.VirtualClock;
+import org.megastage.emulator.VirtualKeyboard;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DCPU.execute() throughput in emulated cycles per microsecond (MHz), for
+ * each instruction mix, interpreted and recompiled. Idle loop skipping is
+ * off so that every cycle is executed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteBenchmark {
+    private static final int CYCLES = 10000;
+
+    @Param({"alu", "indirect", "skip", "jsr", "hwi"})
+    public String mix;
+
+    @Param({"false", "true"})
+    public boolean recompile;
+
+    private DCPU dcpu;
+
+    @Setup
+    public void setup() {
+        dcpu = new DCPU();
+        dcpu.setRecompiling(recompile);
+        dcpu.setIdleSkipping(false);
+        new VirtualClock().connectTo(dcpu);
+        new VirtualKeyboard().connectTo(dcpu);
+        dcpu.powerOn();
+        Programs.load(dcpu, Programs.get(mix));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public int execute() {
+        dcpu.execute(CYCLES);
+        dcpu.cycles -= CYCLES;
+        return dcpu.pc;
+    }
+}
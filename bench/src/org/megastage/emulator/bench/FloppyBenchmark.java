@@ -0,0 +1,61 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.DCPU;
+import org.megastage.emulator.FloppyDisk;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading floppy.bin from memory and from a file, and saving it to a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FloppyBenchmark {
+    private byte[] image;
+    private File file;
+    private FloppyDisk disk;
+
+    @Setup
+    public void setup() throws IOException {
+        InputStream is = DCPU.class.getResourceAsStream("/floppy.bin");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        is.close();
+        image = bytes.toByteArray();
+
+        file = File.createTempFile("floppy", ".bin");
+        file.deleteOnExit();
+        disk = new FloppyDisk(new ByteArrayInputStream(image));
+        disk.save(file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public FloppyDisk loadFromMemory() {
+        return new FloppyDisk(new ByteArrayInputStream(image));
+    }
+
+    @Benchmark
+    public FloppyDisk loadFromFile() throws IOException {
+        return new FloppyDisk(new FileInputStream(file));
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        disk.save(file);
+    }
+}
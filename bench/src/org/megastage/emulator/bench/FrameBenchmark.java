@@ -0,0 +1,64 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.FloppyDisk;
+import org.megastage.emulator.HeadlessEmulator;
+import org.megastage.emulator.DCPU;
+import org.megastage.emulator.Snapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per 60 Hz frame of admiral.bin, including device ticks. "boot" runs
+ * the first 300 frames after power on over and over, restoring a snapshot
+ * in between; "prompt" runs the machine idling at the BASIC prompt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    private static final int BOOT_FRAMES = 300;
+
+    @Param({"boot", "prompt"})
+    public String phase;
+
+    @Param({"false", "true"})
+    public boolean recompile;
+
+    @Param({"true", "false"})
+    public boolean idle;
+
+    private HeadlessEmulator emu;
+    private Snapshot start;
+    private int frame;
+
+    @Setup
+    public void setup() throws IOException {
+        emu = new HeadlessEmulator();
+        emu.dcpu.setRecompiling(recompile);
+        emu.dcpu.setIdleSkipping(idle);
+        emu.dcpu.load(DCPU.class.getResourceAsStream("/admiral.bin"));
+        emu.floppy.insert(new FloppyDisk(DCPU.class.getResourceAsStream("/floppy.bin")));
+        emu.dcpu.powerOn();
+        if (phase.equals("boot")) {
+            start = Snapshot.take(emu.dcpu);
+        } else {
+            for (int i = 0; i < 2 * BOOT_FRAMES; i++) {
+                emu.dcpu.runFrame();
+            }
+        }
+    }
+
+    @Benchmark
+    public int runFrame() {
+        if (start != null && ++frame % BOOT_FRAMES == 0) {
+            start.restore(emu.dcpu);
+        }
+        emu.dcpu.runFrame();
+        return emu.dcpu.pc;
+    }
+}
@@ -0,0 +1,74 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.DCPU;
+import org.megastage.emulator.VirtualMonitor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing a frame and VirtualMonitor.render() after different amounts of
+ * change: nothing, one cell, every cell, or one glyph of a custom font that
+ * is on screen.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+    private static final int SCREEN = 0x8000;
+    private static final int FONT = 0x9000;
+
+    @Param({"idle", "cell", "screen", "font"})
+    public String change;
+
+    private DCPU dcpu;
+    private VirtualMonitor monitor;
+    private int count;
+
+    @Setup
+    public void setup() {
+        dcpu = new DCPU();
+        monitor = new VirtualMonitor();
+        monitor.connectTo(dcpu);
+        dcpu.powerOn();
+
+        for (int i = 0; i < 384; i++) {
+            dcpu.ram[SCREEN + i] = (char) (0xf000 | 'A' + i % 26);
+        }
+        dcpu.written(SCREEN, 384);
+        dcpu.registers[0] = 0;
+        dcpu.registers[1] = SCREEN;
+        monitor.interrupt();
+
+        if (change.equals("font")) {
+            dcpu.registers[0] = 4;
+            dcpu.registers[1] = FONT;
+            monitor.interrupt();
+            dcpu.registers[0] = 1;
+            dcpu.registers[1] = FONT;
+            monitor.interrupt();
+        }
+        monitor.tick60hz();
+        monitor.render();
+    }
+
+    @Benchmark
+    public boolean render() {
+        count++;
+        if (change.equals("cell")) {
+            dcpu.store(SCREEN + count % 384, (char) (0xf000 | 'A' + count % 26));
+        } else if (change.equals("screen")) {
+            for (int i = 0; i < 384; i++) {
+                dcpu.ram[SCREEN + i] = (char) (0xf000 | 'A' + (i + count) % 26);
+            }
+            dcpu.written(SCREEN, 384);
+        } else if (change.equals("font")) {
+            dcpu.store(FONT + 2 * 'A', (char) count);
+        }
+        monitor.tick60hz();
+        return monitor.render();
+    }
+}
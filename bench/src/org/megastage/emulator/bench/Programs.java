@@ -0,0 +1,128 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.DCPU;
+
+/**
+ * Small DCPU-16 programs for the CPU benchmarks. Each one is an endless loop
+ * at address 0 that stresses one kind of instruction.
+ */
+final class Programs {
+    // Operand codes
+    static final int A = 0, B = 1, C = 2, X = 3, Y = 4, Z = 5, I = 6, J = 7;
+    static final int PUSH = 0x18, POP = 0x18, PC = 0x1c, NEXT = 0x1f, IND_NEXT = 0x1e;
+
+    // Basic opcodes
+    static final int SET = 0x01, ADD = 0x02, SUB = 0x03, MUL = 0x04, DIV = 0x06, MOD = 0x08,
+            AND = 0x0a, BOR = 0x0b, XOR = 0x0c, SHR = 0x0d, SHL = 0x0f,
+            IFE = 0x12, IFN = 0x13, IFG = 0x14, IFL = 0x16, ADX = 0x1a;
+
+    // Special opcodes
+    static final int JSR = 0x01, HWN = 0x10, HWQ = 0x11, HWI = 0x12;
+
+    private Programs() {
+    }
+
+    static int ind(int register) {
+        return 0x08 + register;
+    }
+
+    static int indOffset(int register) {
+        return 0x10 + register;
+    }
+
+    /**
+     * Inline literal for -1..30, only valid as the a operand.
+     */
+    static int lit(int value) {
+        return 0x21 + value;
+    }
+
+    static char op(int opcode, int b, int a) {
+        return (char) (opcode | b << 5 | a << 10);
+    }
+
+    static char special(int opcode, int a) {
+        return (char) (opcode << 5 | a << 10);
+    }
+
+    static final char[] ALU = {
+            op(ADD, A, B),
+            op(MUL, B, lit(3)),
+            op(XOR, C, A),
+            op(SHL, X, lit(1)),
+            op(SUB, Y, X),
+            op(DIV, Z, lit(7)),
+            op(MOD, I, lit(13)),
+            op(AND, J, C),
+            op(BOR, Z, J),
+            op(ADX, A, Y),
+            op(SHR, B, lit(2)),
+            op(SET, PC, lit(0)),
+    };
+
+    static final char[] INDIRECT = {
+            op(SET, I, NEXT), 0x1000,
+            // loop at 2
+            op(ADD, ind(I), A),
+            op(SET, A, indOffset(I)), 0x0001,
+            op(SET, IND_NEXT, A), 0x2000,
+            op(ADD, B, IND_NEXT), 0x2000,
+            op(ADD, I, lit(1)),
+            op(AND, I, NEXT), 0x10ff,
+            op(SET, PC, lit(2)),
+    };
+
+    static final char[] SKIP = {
+            // A stays 0, so every condition fails and the chains are skipped
+            op(IFE, A, lit(1)),
+            op(IFN, B, lit(0)),
+            op(IFG, A, lit(5)),
+            op(ADD, C, lit(1)),
+            op(IFE, A, NEXT), 0x1234,
+            op(IFL, B, A),
+            op(SET, X, IND_NEXT), 0x2000,
+            op(ADD, J, lit(1)),
+            op(SET, PC, lit(0)),
+    };
+
+    static final char[] JSR_STACK = {
+            special(JSR, lit(8)),
+            special(JSR, lit(8)),
+            op(SET, PUSH, A),
+            op(SET, PUSH, B),
+            op(SET, B, POP),
+            op(SET, A, POP),
+            op(SET, PC, lit(0)),
+            0, // padding
+            // subroutine at 8
+            op(SET, PUSH, X),
+            op(ADD, X, lit(1)),
+            op(SET, X, POP),
+            op(SET, PC, POP),
+    };
+
+    static final char[] HWI_HEAVY = {
+            // device 0 is the clock, device 1 the keyboard
+            op(SET, A, lit(1)),
+            special(HWI, lit(0)),
+            op(SET, A, lit(1)),
+            special(HWI, lit(1)),
+            special(HWN, J),
+            special(HWQ, lit(0)),
+            op(SET, PC, lit(0)),
+    };
+
+    static char[] get(String name) {
+        if (name.equals("alu")) return ALU;
+        if (name.equals("indirect")) return INDIRECT;
+        if (name.equals("skip")) return SKIP;
+        if (name.equals("jsr")) return JSR_STACK;
+        if (name.equals("hwi")) return HWI_HEAVY;
+        throw new IllegalArgumentException(name);
+    }
+
+    static void load(DCPU dcpu, char[] program) {
+        System.arraycopy(program, 0, dcpu.ram, 0, program.length);
+        dcpu.written(0, dcpu.ram.length);
+    }
+}
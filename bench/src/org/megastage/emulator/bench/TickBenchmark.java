@@ -0,0 +1,49 @@
+package org.megastage.emulator.bench;
+
+import org.megastage.emulator.DCPU;
+import org.megastage.emulator.VirtualClock;
+import org.megastage.emulator.VirtualKeyboard;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter throughput of DCPU.tick() in instructions per microsecond, for
+ * each instruction mix in Programs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    private static final int INSTRUCTIONS = 1000;
+
+    @Param({"alu", "indirect", "skip", "jsr", "hwi"})
+    public String mix;
+
+    private DCPU dcpu;
+
+    @Setup
+    public void setup() {
+        dcpu = new DCPU();
+        new VirtualClock().connectTo(dcpu);
+        new VirtualKeyboard().connectTo(dcpu);
+        dcpu.powerOn();
+        Programs.load(dcpu, Programs.get(mix));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public int tick() {
+        DCPU dcpu = this.dcpu;
+        for (int i = 0; i < INSTRUCTIONS; i++) {
+            dcpu.tick();
+        }
+        // Keep the cycle counter from overflowing over a long run
+        int cycles = dcpu.cycles;
+        dcpu.cycles = 0;
+        return cycles;
+    }
+}
@@ -0,0 +1,765 @@
+package org.megastage.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dynamic recompiler for hot DCPU code.
+ *
+ * A block is the straight-line run of basic instructions starting at an entry
+ * PC, up to (not including) the first IFx, special opcode (JSR, INT, RFI,
+ * HWI...), undefined opcode or instruction that writes PC. Those are left to
+ * DCPU.tick(), so blocks never branch and never touch interrupts or hardware.
+ *
+ * Every block becomes one class with a run(DCPU, int) method. Operand words
+ * and literal values are baked in as constants; RAM stores go through
+ * DCPU.store() so the decode cache and any block covering the written word
+ * are dropped.
+ */
+class BlockCompiler {
+    static final int THRESHOLD = 32;
+    static final int MIN_INSTRUCTIONS = 2;
+    static final int MAX_INSTRUCTIONS = 32;
+    static final int MAX_WORDS = MAX_INSTRUCTIONS * 3;
+
+    private static final String DCPU_CLASS = "org/megastage/emulator/DCPU";
+    private static final String BLOCK_CLASS = "org/megastage/emulator/CompiledBlock";
+
+    // JVM opcodes
+    private static final int ICONST_0 = 3;
+    private static final int BIPUSH = 16;
+    private static final int SIPUSH = 17;
+    private static final int LDC_W = 19;
+    private static final int ILOAD = 21;
+    private static final int ALOAD = 25;
+    private static final int CALOAD = 52;
+    private static final int ISTORE = 54;
+    private static final int ASTORE = 58;
+    private static final int CASTORE = 85;
+    private static final int IADD = 96;
+    private static final int ISUB = 100;
+    private static final int IMUL = 104;
+    private static final int IDIV = 108;
+    private static final int IREM = 112;
+    private static final int ISHL = 120;
+    private static final int ISHR = 122;
+    private static final int IUSHR = 124;
+    private static final int IAND = 126;
+    private static final int IOR = 128;
+    private static final int IXOR = 130;
+    private static final int I2C = 146;
+    private static final int I2S = 147;
+    private static final int IFNE = 154;
+    private static final int IF_ICMPLT = 161;
+    private static final int GOTO = 167;
+    private static final int RETURN = 177;
+    private static final int GETFIELD = 180;
+    private static final int PUTFIELD = 181;
+    private static final int INVOKEVIRTUAL = 182;
+    private static final int INVOKESPECIAL = 183;
+
+    // Locals of the generated run(DCPU cpu, int limit) method
+    private static final int THIS = 0;
+    private static final int CPU = 1;
+    private static final int LIMIT = 2;
+    private static final int RAM = 3;
+    private static final int REGS = 4;
+    private static final int A = 5;
+    private static final int B = 6;
+    private static final int ADDR = 7;
+    private static final int VAL = 8;
+    private static final int CYCLES = 9;
+
+    // Where a b operand lives once resolved
+    private static final int B_REGISTER = 0;
+    private static final int B_RAM = 1;
+    private static final int B_SP = 2;
+    private static final int B_EX = 3;
+    private static final int B_LITERAL = 4;
+
+    private final DCPU dcpu;
+    private final CompiledBlock[] blocks = new CompiledBlock[65536];
+    private final int[] hits = new int[65536];
+    private final byte[] coverage = new byte[65536];
+    private int serial;
+
+    BlockCompiler(DCPU dcpu) {
+        this.dcpu = dcpu;
+    }
+
+    /**
+     * Returns the block starting at pc, compiling it once the address has been
+     * entered THRESHOLD times, or null if execution should stay in tick().
+     */
+    CompiledBlock lookup(int pc) {
+        CompiledBlock block = blocks[pc];
+        if (block == null && ++hits[pc] == THRESHOLD) {
+            block = compile(pc);
+            if (block != null) {
+                blocks[pc] = block;
+                for (int i = 0; i < block.length; i++) {
+                    coverage[pc + i]++;
+                }
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Called for every RAM word written. Drops any block that covers it.
+     */
+    void written(int addr) {
+        hits[addr] = 0;
+        if (coverage[addr] == 0) return;
+
+        for (int start = addr; start >= 0 && start > addr - MAX_WORDS; start--) {
+            CompiledBlock block = blocks[start];
+            if (block != null && start + block.length > addr) {
+                block.valid = false;
+                blocks[start] = null;
+                for (int i = 0; i < block.length; i++) {
+                    coverage[start + i]--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of blocks compiled so far.
+     */
+    int getCompiled() {
+        return serial;
+    }
+
+    void reset() {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != null) {
+                blocks[i].valid = false;
+                blocks[i] = null;
+            }
+            hits[i] = 0;
+            coverage[i] = 0;
+        }
+    }
+
+    private static boolean isCompilable(char opcode) {
+        int cmd = opcode & 0x1F;
+        if (cmd == 0) return false;
+        if (cmd >= 16 && cmd <= 25) return false;
+        if (cmd == 28 || cmd == 29) return false;
+        return (opcode >> 5 & 0x1F) != 0x1C;
+    }
+
+    private static boolean hasNextWord(int type) {
+        return (type & 0xF8) == 0x10 || type == 0x1A || type == 0x1E || type == 0x1F;
+    }
+
+    private CompiledBlock compile(int entry) {
+        char[] ram = dcpu.ram;
+        int count = 0;
+        int end = entry;
+        while (count < MAX_INSTRUCTIONS && end < 0x10000 && isCompilable(ram[end])) {
+            char opcode = ram[end];
+            int len = 1;
+            if (hasNextWord(opcode >> 10 & 0x3F)) len++;
+            if (hasNextWord(opcode >> 5 & 0x1F)) len++;
+            if (end + len > 0x10000) break;
+            end += len;
+            count++;
+        }
+        // A lone instruction is cheaper to interpret than to dispatch to
+        if (count < MIN_INSTRUCTIONS) return null;
+
+        String name = "org/megastage/emulator/Block" + Integer.toHexString(entry) + "_" + (serial++);
+        byte[] bytes;
+        try {
+            bytes = generate(name, entry, end);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            Class<?> type = new BlockLoader().define(name.replace('/', '.'), bytes);
+            CompiledBlock block = (CompiledBlock) type.getDeclaredConstructor().newInstance();
+            block.start = (char) entry;
+            block.length = end - entry;
+            return block;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] generate(String name, int entry, int end) throws IOException {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(name);
+        int superClass = cp.classRef(BLOCK_CLASS);
+
+        Code init = new Code(cp);
+        init.op(ALOAD).u1(THIS);
+        init.op(INVOKESPECIAL).u2(cp.memberRef(10, BLOCK_CLASS, "<init>", "()V"));
+        init.op(RETURN);
+
+        Code run = new Code(cp);
+        Fields f = new Fields(cp);
+        run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.ram).op(ASTORE).u1(RAM);
+        run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.registers).op(ASTORE).u1(REGS);
+        run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.cycles).op(ISTORE).u1(CYCLES);
+
+        char[] ram = dcpu.ram;
+        int pc = entry;
+        int spent = 0;
+        while (pc < end) {
+            if (pc != entry) {
+                run.op(ILOAD).u1(CYCLES);
+                run.push(spent);
+                run.op(IADD);
+                run.op(ILOAD).u1(LIMIT);
+                int ok = run.branch(IF_ICMPLT);
+                exit(run, f, pc, spent);
+                run.patch(ok);
+            }
+
+            char opcode = ram[pc++];
+            int cmd = opcode & 0x1F;
+            int btype = opcode >> 5 & 0x1F;
+            int atype = opcode >> 10 & 0x3F;
+            spent++;
+
+            char aword = 0;
+            if (hasNextWord(atype)) {
+                aword = ram[pc++];
+                spent++;
+            }
+            loadA(run, f, atype, aword, pc);
+            run.op(ISTORE).u1(A);
+
+            char bword = 0;
+            if (hasNextWord(btype)) {
+                bword = ram[pc++];
+                spent++;
+            }
+            int where = resolveB(run, f, btype, bword);
+
+            if (cmd != 1 && cmd != 30 && cmd != 31) {
+                loadB(run, f, where, btype, bword);
+                run.op(ISTORE).u1(B);
+            }
+            spent += operate(run, f, cmd);
+            storeB(run, f, where, btype);
+
+            if (cmd == 30 || cmd == 31) {
+                step(run, 6, cmd == 30 ? IADD : ISUB);
+                step(run, 7, cmd == 30 ? IADD : ISUB);
+            }
+
+            if (where == B_RAM) {
+                run.op(ALOAD).u1(THIS).op(GETFIELD).u2(f.valid);
+                int ok = run.branch(IFNE);
+                exit(run, f, pc, spent);
+                run.patch(ok);
+            }
+        }
+        exit(run, f, end, spent);
+
+        int initName = cp.utf8("<init>");
+        int initDesc = cp.utf8("()V");
+        int runName = cp.utf8("run");
+        int runDesc = cp.utf8("(L" + DCPU_CLASS + ";I)V");
+        int codeAttr = cp.utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        // Version 49 predates StackMapTable, so the generated branches need no frames
+        out.writeShort(0);
+        out.writeShort(49);
+        cp.writeTo(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+        writeMethod(out, initName, initDesc, codeAttr, init, 1, 1);
+        writeMethod(out, runName, runDesc, codeAttr, run, 8, 10);
+        out.writeShort(0); // attributes
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr, Code code,
+                                    int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private static void exit(Code run, Fields f, int pc, int spent) {
+        run.op(ALOAD).u1(CPU);
+        run.op(ILOAD).u1(CYCLES);
+        run.push(spent);
+        run.op(IADD);
+        run.op(PUTFIELD).u2(f.cycles);
+        run.op(ALOAD).u1(CPU);
+        run.push(pc);
+        run.op(PUTFIELD).u2(f.pc);
+        run.op(RETURN);
+    }
+
+    private static void step(Code run, int reg, int op) {
+        run.op(ALOAD).u1(REGS);
+        run.push(reg);
+        run.op(ALOAD).u1(REGS);
+        run.push(reg);
+        run.op(CALOAD);
+        run.push(1);
+        run.op(op);
+        run.op(CASTORE);
+    }
+
+    private static void loadSp(Code run, Fields f) {
+        run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.sp);
+    }
+
+    private static void addWrapped(Code run, int word) {
+        run.push(word);
+        run.op(IADD);
+        run.push(0xFFFF);
+        run.op(IAND);
+    }
+
+    /**
+     * Pushes the value of an a operand, mirroring DCPU.getValA(). pc is the
+     * address following any next word the operand consumed.
+     */
+    private static void loadA(Code run, Fields f, int type, char word, int pc) {
+        if (type >= 0x20) {
+            run.push((type & 0x1F) + 0xFFFF & 0xFFFF);
+            return;
+        }
+        int reg = type & 0x7;
+        switch (type & 0xF8) {
+            case 0x00:
+                run.op(ALOAD).u1(REGS).push(reg).op(CALOAD);
+                return;
+            case 0x08:
+                run.op(ALOAD).u1(RAM).op(ALOAD).u1(REGS).push(reg).op(CALOAD).op(CALOAD);
+                return;
+            case 0x10:
+                run.op(ALOAD).u1(RAM).op(ALOAD).u1(REGS).push(reg).op(CALOAD);
+                addWrapped(run, word);
+                run.op(CALOAD);
+                return;
+        }
+        switch (type) {
+            case 0x18: // POP
+                run.op(ALOAD).u1(RAM);
+                loadSp(run, f);
+                run.op(CALOAD);
+                run.op(ALOAD).u1(CPU);
+                loadSp(run, f);
+                run.push(1).op(IADD).op(I2C);
+                run.op(PUTFIELD).u2(f.sp);
+                return;
+            case 0x19: // PEEK
+                run.op(ALOAD).u1(RAM);
+                loadSp(run, f);
+                run.op(CALOAD);
+                return;
+            case 0x1A: // PICK n
+                run.op(ALOAD).u1(RAM);
+                loadSp(run, f);
+                addWrapped(run, word);
+                run.op(CALOAD);
+                return;
+            case 0x1B:
+                loadSp(run, f);
+                return;
+            case 0x1C:
+                run.push(pc);
+                return;
+            case 0x1D:
+                run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.ex);
+                return;
+            case 0x1E:
+                run.op(ALOAD).u1(RAM).push(word).op(CALOAD);
+                return;
+            default:
+                run.push(word);
+        }
+    }
+
+    /**
+     * Resolves a b operand, mirroring DCPU.getAddrB(). RAM targets leave their
+     * address in the ADDR local.
+     */
+    private static int resolveB(Code run, Fields f, int type, char word) {
+        int reg = type & 0x7;
+        switch (type & 0xF8) {
+            case 0x00:
+                return B_REGISTER;
+            case 0x08:
+                run.op(ALOAD).u1(REGS).push(reg).op(CALOAD);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+            case 0x10:
+                run.op(ALOAD).u1(REGS).push(reg).op(CALOAD);
+                addWrapped(run, word);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+        }
+        switch (type) {
+            case 0x18: // PUSH
+                run.op(ALOAD).u1(CPU);
+                loadSp(run, f);
+                run.push(1).op(ISUB).op(I2C);
+                run.op(PUTFIELD).u2(f.sp);
+                loadSp(run, f);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+            case 0x19: // PEEK
+                loadSp(run, f);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+            case 0x1A: // PICK n
+                loadSp(run, f);
+                addWrapped(run, word);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+            case 0x1B:
+                return B_SP;
+            case 0x1D:
+                return B_EX;
+            case 0x1E:
+                run.push(word);
+                run.op(ISTORE).u1(ADDR);
+                return B_RAM;
+            case 0x1F:
+                return B_LITERAL;
+        }
+        throw new IllegalStateException("Illegal b value type " + Integer.toHexString(type));
+    }
+
+    private static void loadB(Code run, Fields f, int where, int type, char word) {
+        switch (where) {
+            case B_REGISTER:
+                run.op(ALOAD).u1(REGS).push(type & 0x7).op(CALOAD);
+                break;
+            case B_RAM:
+                run.op(ALOAD).u1(RAM).op(ILOAD).u1(ADDR).op(CALOAD);
+                break;
+            case B_SP:
+                loadSp(run, f);
+                break;
+            case B_EX:
+                run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.ex);
+                break;
+            default:
+                run.push(word);
+        }
+    }
+
+    private static void storeB(Code run, Fields f, int where, int type) {
+        switch (where) {
+            case B_REGISTER:
+                run.op(ALOAD).u1(REGS).push(type & 0x7).op(ILOAD).u1(B).op(CASTORE);
+                break;
+            case B_RAM:
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(ADDR).op(ILOAD).u1(B);
+                run.op(INVOKEVIRTUAL).u2(f.store);
+                break;
+            case B_SP:
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(B).op(PUTFIELD).u2(f.sp);
+                break;
+            case B_EX:
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(B).op(PUTFIELD).u2(f.ex);
+                break;
+        }
+    }
+
+    /**
+     * Emits the arithmetic of a basic opcode, mirroring the switch in
+     * DCPU.tick(). Leaves the result in B and returns the opcode's extra cycles.
+     */
+    private static int operate(Code run, Fields f, int cmd) {
+        switch (cmd) {
+            case 1: // SET
+            case 30: // STI
+            case 31: // STD
+                run.op(ILOAD).u1(A).op(ISTORE).u1(B);
+                return 0;
+            case 2: // ADD
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IADD);
+                overflow(run, f);
+                return 1;
+            case 3: // SUB
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(ISUB);
+                overflow(run, f);
+                return 1;
+            case 4: // MUL
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IMUL);
+                overflow(run, f);
+                return 1;
+            case 5: // MLI
+                run.op(ILOAD).u1(B).op(I2S).op(ILOAD).u1(A).op(I2S).op(IMUL);
+                overflow(run, f);
+                return 1;
+            case 6: // DIV
+            case 7: { // DVI
+                int sign = cmd == 7 ? I2S : -1;
+                run.op(ILOAD).u1(A);
+                int nonZero = run.branch(IFNE);
+                run.push(0).op(ISTORE).u1(B);
+                run.op(ALOAD).u1(CPU).push(0).op(PUTFIELD).u2(f.ex);
+                int done = run.branch(GOTO);
+                run.patch(nonZero);
+                run.op(ILOAD).u1(B).maybe(sign).op(ILOAD).u1(A).maybe(sign).op(IDIV).op(I2C).op(ISTORE).u1(B);
+                run.op(ALOAD).u1(CPU);
+                run.op(ILOAD).u1(B).maybe(sign).push(16).op(ISHL);
+                run.op(ILOAD).u1(A).maybe(sign).op(IDIV).op(I2C);
+                run.op(PUTFIELD).u2(f.ex);
+                run.patch(done);
+                return 2;
+            }
+            case 8: // MOD
+            case 9: { // MDI
+                int sign = cmd == 9 ? I2S : -1;
+                run.op(ILOAD).u1(A);
+                int nonZero = run.branch(IFNE);
+                run.push(0).op(ISTORE).u1(B);
+                int done = run.branch(GOTO);
+                run.patch(nonZero);
+                run.op(ILOAD).u1(B).maybe(sign).op(ILOAD).u1(A).maybe(sign).op(IREM).op(I2C).op(ISTORE).u1(B);
+                run.patch(done);
+                return 2;
+            }
+            case 10: // AND
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IAND).op(ISTORE).u1(B);
+                return 0;
+            case 11: // BOR
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IOR).op(ISTORE).u1(B);
+                return 0;
+            case 12: // XOR
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IXOR).op(ISTORE).u1(B);
+                return 0;
+            case 13: // SHR
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(B).push(16).op(ISHL).op(ILOAD).u1(A).op(ISHR).op(I2C);
+                run.op(PUTFIELD).u2(f.ex);
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IUSHR).op(I2C).op(ISTORE).u1(B);
+                return 0;
+            case 14: // ASR
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(B).op(I2S).push(16).op(ISHL).op(ILOAD).u1(A).op(IUSHR).op(I2C);
+                run.op(PUTFIELD).u2(f.ex);
+                run.op(ILOAD).u1(B).op(I2S).op(ILOAD).u1(A).op(ISHR).op(I2C).op(ISTORE).u1(B);
+                return 0;
+            case 15: // SHL
+                run.op(ALOAD).u1(CPU).op(ILOAD).u1(B).op(ILOAD).u1(A).op(ISHL).push(16).op(ISHR).op(I2C);
+                run.op(PUTFIELD).u2(f.ex);
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(ISHL).op(I2C).op(ISTORE).u1(B);
+                return 0;
+            case 26: // ADX
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(IADD);
+                run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.ex).op(IADD);
+                overflow(run, f);
+                return 1;
+            case 27: // SBX
+                run.op(ILOAD).u1(B).op(ILOAD).u1(A).op(ISUB);
+                run.op(ALOAD).u1(CPU).op(GETFIELD).u2(f.ex).op(IADD);
+                overflow(run, f);
+                return 1;
+        }
+        throw new IllegalStateException("Opcode " + cmd + " is not compilable");
+    }
+
+    /**
+     * Stores the int on the stack as b = (char)val, ex = (char)(val >> 16).
+     */
+    private static void overflow(Code run, Fields f) {
+        run.op(ISTORE).u1(VAL);
+        run.op(ALOAD).u1(CPU).op(ILOAD).u1(VAL).push(16).op(ISHR).op(I2C).op(PUTFIELD).u2(f.ex);
+        run.op(ILOAD).u1(VAL).op(I2C).op(ISTORE).u1(B);
+    }
+
+    /**
+     * Constant pool indices of the DCPU members generated code uses.
+     */
+    private static class Fields {
+        final int ram;
+        final int registers;
+        final int pc;
+        final int sp;
+        final int ex;
+        final int cycles;
+        final int valid;
+        final int store;
+
+        Fields(ConstantPool cp) throws IOException {
+            ram = cp.memberRef(9, DCPU_CLASS, "ram", "[C");
+            registers = cp.memberRef(9, DCPU_CLASS, "registers", "[C");
+            pc = cp.memberRef(9, DCPU_CLASS, "pc", "C");
+            sp = cp.memberRef(9, DCPU_CLASS, "sp", "C");
+            ex = cp.memberRef(9, DCPU_CLASS, "ex", "C");
+            cycles = cp.memberRef(9, DCPU_CLASS, "cycles", "I");
+            valid = cp.memberRef(9, BLOCK_CLASS, "valid", "Z");
+            store = cp.memberRef(10, DCPU_CLASS, "store", "(IC)V");
+        }
+    }
+
+    /**
+     * Class file constant pool. Entries are written as they are first requested.
+     */
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        int utf8(String value) throws IOException {
+            Integer index = entries.get("U" + value);
+            if (index == null) {
+                out.writeByte(1);
+                out.writeUTF(value);
+                index = add("U" + value);
+            }
+            return index;
+        }
+
+        int classRef(String name) throws IOException {
+            Integer index = entries.get("C" + name);
+            if (index == null) {
+                int utf = utf8(name);
+                out.writeByte(7);
+                out.writeShort(utf);
+                index = add("C" + name);
+            }
+            return index;
+        }
+
+        int integer(int value) throws IOException {
+            Integer index = entries.get("I" + value);
+            if (index == null) {
+                out.writeByte(3);
+                out.writeInt(value);
+                index = add("I" + value);
+            }
+            return index;
+        }
+
+        int memberRef(int tag, String owner, String name, String desc) throws IOException {
+            String key = tag + owner + "." + name + ":" + desc;
+            Integer index = entries.get(key);
+            if (index == null) {
+                int cls = classRef(owner);
+                int n = utf8(name);
+                int d = utf8(desc);
+                out.writeByte(12);
+                out.writeShort(n);
+                out.writeShort(d);
+                int nat = add("N" + key);
+                out.writeByte(tag);
+                out.writeShort(cls);
+                out.writeShort(nat);
+                index = add(key);
+            }
+            return index;
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+
+        void writeTo(DataOutputStream dos) throws IOException {
+            dos.writeShort(count);
+            dos.write(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Growable bytecode buffer with forward branch patching.
+     */
+    private static class Code {
+        private final ConstantPool cp;
+        private byte[] buf = new byte[1024];
+        private int len;
+
+        Code(ConstantPool cp) {
+            this.cp = cp;
+        }
+
+        Code op(int opcode) {
+            return u1(opcode);
+        }
+
+        Code maybe(int opcode) {
+            return opcode < 0 ? this : u1(opcode);
+        }
+
+        Code u1(int b) {
+            if (len == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, len);
+                buf = bigger;
+            }
+            buf[len++] = (byte) b;
+            return this;
+        }
+
+        Code u2(int s) {
+            return u1(s >> 8).u1(s);
+        }
+
+        Code push(int value) {
+            if (value >= -1 && value <= 5) return u1(ICONST_0 + value);
+            if (value >= -128 && value <= 127) return u1(BIPUSH).u1(value);
+            if (value >= -32768 && value <= 32767) return u1(SIPUSH).u2(value);
+            try {
+                return u1(LDC_W).u2(cp.integer(value));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        int branch(int opcode) {
+            int at = len;
+            u1(opcode).u2(0);
+            return at;
+        }
+
+        void patch(int at) {
+            int offset = len - at;
+            buf[at + 1] = (byte) (offset >> 8);
+            buf[at + 2] = (byte) offset;
+        }
+
+        int size() {
+            return len;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(buf, 0, len);
+        }
+    }
+
+    private static class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(BlockCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.megastage.emulator;
+
+/**
+ * A basic block of DCPU code translated to JVM bytecode by {@link BlockCompiler}.
+ *
+ * Generated subclasses are defined in their own class loader, so everything
+ * they touch here and in {@link DCPU} has to be public.
+ */
+public abstract class CompiledBlock {
+    /**
+     * Cleared when RAM under the block is written. A running block checks it
+     * after each of its own stores and returns if it has been overwritten.
+     */
+    public boolean valid = true;
+
+    char start;
+    int length;
+
+    /**
+     * Executes the block from its entry point. Stops early at an instruction
+     * boundary once cpu.cycles would reach limit, and always leaves pc and
+     * cycles exactly where the interpreter would have.
+     */
+    public abstract void run(DCPU cpu, int limit);
+}
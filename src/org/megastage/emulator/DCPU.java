@@ -1,11 +1,11 @@
 package org.megastage.emulator;
 
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.KeyEvent;
 import java.io.*;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * Experimental 1.7 update to Notch's 1.4 emulator
@@ -15,22 +15,105 @@ import java.util.List;
 public class DCPU
 {
     public char[] ram = new char[65536];
+    public final MemoryBus memory = new MemoryBus();
     public char pc;
     public char sp;
     public char ex;
     public char ia;
     public char[] registers = new char[8];
     public int cycles;
-    protected ArrayList<DCPUHardware> hardware = new ArrayList<DCPUHardware>();
+    // Replaced as a whole on add/remove, so the CPU thread reads it without locking
+    protected volatile DCPUHardware[] hardware = new DCPUHardware[0];
+    private final Object hardwareLock = new Object();
 
     protected static volatile boolean stop = false;
     protected static final int khz = 100;
+    protected static final int cyclesPerFrame = 1000 * khz / 60 + 1;
+    static final long NS_PER_FRAME = 16666666L;
+    private volatile double speed = 1.0;
+    private volatile double mhz;
+    private volatile SpeedListener speedListener;
+    private long speedTime;
+    private int speedFrames;
     boolean isSkipping = false;
     boolean isOnFire = false;
     boolean queueingEnabled = false; //TODO: Verify implementation
-    char[] interrupts = new char[256];
-    int ip;
-    int iwp;
+    final InterruptQueue interrupts = new InterruptQueue(256);
+
+    /*
+     * Decoded instruction cache, one entry per RAM address, or 0 when the word
+     * at that address has not been decoded since it was last written. An entry
+     * holds the operation (basic opcodes at 0..31, special opcodes at 32..63),
+     * the kind and register or literal of each operand, the instruction length
+     * and a conditional flag, so tick() dispatches on these instead of taking
+     * the opcode word apart again.
+     */
+    private static final int DECODED = 0x4000000;
+    private static final int CONDITIONAL = 0x2000000;
+    private static final int LENGTH_SHIFT = 23;
+    private static final int A_SHIFT = 6;
+    private static final int B_SHIFT = 16;
+    private final int[] decoded = new int[65536];
+
+    /*
+     * Operand kinds. A decoded operand is the kind in the low 4 bits and the
+     * register index, or the short literal plus one, above it.
+     */
+    private static final int REGISTER = 0;
+    private static final int REGISTER_INDIRECT = 1;
+    private static final int REGISTER_OFFSET = 2;
+    private static final int PUSH_POP = 3;
+    private static final int PEEK = 4;
+    private static final int PICK = 5;
+    private static final int SP = 6;
+    private static final int PC = 7;
+    private static final int EX = 8;
+    private static final int INDIRECT = 9;
+    private static final int NEXT_WORD = 10;
+    private static final int LITERAL = 11;
+    private static final int[] STACK_KINDS = {PUSH_POP, PEEK, PICK, SP, PC, EX, INDIRECT, NEXT_WORD};
+    // RAM address of the operand last read, for write()
+    private int address;
+
+    private BlockCompiler compiler;
+    private Profiler profiler;
+
+    /*
+     * Device events ordered by cycle. Times are absolute: frameTime counts the
+     * cycles of all finished frames, so the current time is frameTime + cycles.
+     * eventCycles is the next event's time in terms of this frame's cycles.
+     */
+    private final PriorityQueue<ScheduledEvent> events = new PriorityQueue<ScheduledEvent>();
+    private long frameTime;
+    private long eventSequence;
+    private int eventCycles = Integer.MAX_VALUE;
+
+    /*
+     * Idle loop detection. On a short backward branch the state that can steer
+     * the loop is compared with the state at the previous arrival at the same
+     * address. If nothing changed, every further iteration would be the same,
+     * so whole iterations are skipped up to the next event or the end of the
+     * frame. The remainder runs normally, which keeps runs cycle exact.
+     * Device state may change at frame ends and in events, so these reset the
+     * comparison.
+     */
+    static final int IDLE_MAX_WORDS = 16;
+    private boolean idleSkipping = true;
+    private int idleHead = -1;
+    private long idleTime;
+    private long idleGeneration;
+    private final char[] idleRegisters = new char[8];
+    private char idleSp;
+    private char idleEx;
+    private char idleIa;
+    private long idleInterrupts;
+    private int idleDepth;
+    private boolean idleQueueing;
+    private long idleEvents;
+    private long idleEffects;
+    private long idleCycles;
+    // Interrupts sent to devices that are not idempotent, see DCPUHardware.isIdempotent()
+    private long hwiEffects;
 
     public int getAddrB(int type)
     {
@@ -163,9 +246,9 @@ public class DCPU
     }
 
     public void set(int addr, char val) {
-        if (addr < 0x10000)
-            ram[addr & 0xFFFF] = val;
-        else if (addr < 0x10008) {
+        if (addr < 0x10000) {
+            store(addr & 0xFFFF, val);
+        } else if (addr < 0x10008) {
             registers[addr & 0x7] = val;
         } else if (addr < 0x20000) {
             if (addr == 0x10008)
@@ -202,7 +285,257 @@ public class DCPU
         isSkipping = true;
     }
 
+    /**
+     * Reports a range of RAM that was written directly to ram[] instead of
+     * through set() or store(). Drops cached code for it and records the
+     * write on the memory bus. The range may wrap around the end of RAM.
+     */
+    public void written(int addr, int length) {
+        if (length <= 0) return;
+        if (length >= 0x10000) {
+            Arrays.fill(decoded, 0);
+            if (compiler != null) compiler.reset();
+        } else {
+            for (int i = 0; i < length; i++) {
+                decoded[addr + i & 0xFFFF] = 0;
+                if (compiler != null) compiler.written(addr + i & 0xFFFF);
+            }
+        }
+        memory.written(addr, length);
+    }
+
+    /**
+     * Writes one RAM word, drops any cached code for it and records the write
+     * on the memory bus.
+     */
+    public void store(int addr, char val) {
+        ram[addr] = val;
+        decoded[addr] = 0;
+        if (compiler != null) compiler.written(addr);
+        memory.written(addr);
+    }
+
+    /**
+     * Enables or disables the basic-block recompiler used by execute().
+     */
+    public void setRecompiling(boolean recompiling) {
+        if (recompiling && compiler == null) {
+            compiler = new BlockCompiler(this);
+        } else if (!recompiling) {
+            compiler = null;
+        }
+    }
+
+    public boolean isRecompiling() {
+        return compiler != null;
+    }
+
+    BlockCompiler getCompiler() {
+        return compiler;
+    }
+
+    /**
+     * Attaches a profiler, or detaches it with null. While a profiler is
+     * attached execute() runs every instruction through tick(), without the
+     * recompiler or idle loop skipping, so that each one is counted.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        idleHead = -1;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Enables or disables skipping of idle loops in execute(). On by default.
+     */
+    public void setIdleSkipping(boolean idleSkipping) {
+        this.idleSkipping = idleSkipping;
+        idleHead = -1;
+    }
+
+    public boolean isIdleSkipping() {
+        return idleSkipping;
+    }
+
+    /**
+     * Total cycles skipped in idle loops.
+     */
+    public long getIdleCycles() {
+        return idleCycles;
+    }
+
+    private int decode(int addr) {
+        char opcode = ram[addr];
+        int cmd = opcode & 0x1F;
+        int entry = DECODED | getInstructionLength(opcode) << LENGTH_SHIFT;
+        if (cmd == 0) {
+            entry |= 32 + (opcode >> 5 & 0x1F) | operand(opcode >> 10 & 0x3F) << A_SHIFT;
+        } else {
+            entry |= cmd | operand(opcode >> 10 & 0x3F) << A_SHIFT | operand(opcode >> 5 & 0x1F) << B_SHIFT;
+            if ((cmd >= 16) && (cmd <= 23))
+                entry |= CONDITIONAL;
+        }
+        return decoded[addr] = entry;
+    }
+
+    private static int operand(int type) {
+        if (type >= 0x20) {
+            return LITERAL | (type & 0x1F) << 4;
+        }
+        switch (type & 0x18) {
+            case 0x00:
+                return REGISTER | (type & 0x7) << 4;
+            case 0x08:
+                return REGISTER_INDIRECT | (type & 0x7) << 4;
+            case 0x10:
+                return REGISTER_OFFSET | (type & 0x7) << 4;
+        }
+        return STACK_KINDS[type & 0x7];
+    }
+
+    /**
+     * Reads a decoded operand, consuming its next word if it has one. For
+     * operands in RAM the address is left in address for write(); a next
+     * word literal is at the address of the word itself. pop is true for a
+     * operands, where PUSH/POP pops.
+     */
+    private char read(int operand, boolean pop) {
+        switch (operand & 0xF) {
+            case REGISTER:
+                return registers[operand >> 4];
+            case REGISTER_INDIRECT:
+                address = registers[operand >> 4];
+                break;
+            case REGISTER_OFFSET:
+                cycles++;
+                address = ram[pc++] + registers[operand >> 4] & 0xFFFF;
+                break;
+            case PUSH_POP:
+                address = (pop ? sp++ : --sp) & 0xFFFF;
+                break;
+            case PEEK:
+                address = sp;
+                break;
+            case PICK:
+                cycles++;
+                address = ram[pc++] + sp & 0xFFFF;
+                break;
+            case SP:
+                return sp;
+            case PC:
+                return pc;
+            case EX:
+                return ex;
+            case INDIRECT:
+                cycles++;
+                address = ram[pc++];
+                break;
+            case NEXT_WORD:
+                cycles++;
+                return ram[pc++];
+            default:
+                return (char) ((operand >> 4) + 0xFFFF);
+        }
+        return ram[address];
+    }
+
+    /**
+     * Writes a decoded operand after read() of the same operand.
+     */
+    private void write(int operand, char val) {
+        switch (operand & 0xF) {
+            case REGISTER:
+                registers[operand >> 4] = val;
+                break;
+            case SP:
+                sp = val;
+                break;
+            case PC:
+                pc = val;
+                break;
+            case EX:
+                ex = val;
+                break;
+            case NEXT_WORD:
+            case LITERAL:
+                // Writes to literals are ignored
+                break;
+            default:
+                store(address, val);
+        }
+    }
+
+    private void push(char val) {
+        store(--sp & 0xFFFF, val);
+    }
+
+    /**
+     * Runs instructions until cycles reaches limit. Hot code runs as compiled
+     * blocks when recompiling is enabled; skips, pending interrupts and the
+     * instructions that end a block always go through tick().
+     */
+    public void execute(int limit) {
+        interrupts.setConsumer(Thread.currentThread());
+        while (cycles < limit) {
+            if (cycles >= eventCycles) runEvents();
+            if (compiler != null && profiler == null && !isSkipping && !isOnFire && (queueingEnabled || interrupts.isEmpty())) {
+                CompiledBlock block = compiler.lookup(pc);
+                if (block != null) {
+                    // Stop the block where the next device event is due
+                    block.run(this, eventCycles < limit ? eventCycles : limit);
+                    continue;
+                }
+            }
+            char from = pc;
+            tick();
+            if (pc <= from && from - pc <= IDLE_MAX_WORDS && idleSkipping && profiler == null) {
+                idle(limit);
+            }
+        }
+    }
+
+    /**
+     * Called after a backward branch to pc. Skips whole iterations of the loop
+     * if the last one changed nothing.
+     */
+    private void idle(int limit) {
+        long now = frameTime + cycles;
+        long generation = memory.getGeneration();
+        if (pc == idleHead && generation == idleGeneration && !isOnFire && !isSkipping
+                && sp == idleSp && ex == idleEx && ia == idleIa
+                && interrupts.getReceived() == idleInterrupts && interrupts.getDepth() == idleDepth
+                && queueingEnabled == idleQueueing
+                && eventSequence == idleEvents && hwiEffects == idleEffects
+                && Arrays.equals(registers, idleRegisters)) {
+            long length = now - idleTime;
+            int stop = eventCycles < limit ? eventCycles : limit;
+            long skip = (stop - cycles) / length * length;
+            if (skip > 0) {
+                cycles += (int) skip;
+                idleCycles += skip;
+                now += skip;
+            }
+        } else {
+            idleHead = pc;
+            idleGeneration = generation;
+            idleSp = sp;
+            idleEx = ex;
+            idleIa = ia;
+            idleInterrupts = interrupts.getReceived();
+            idleDepth = interrupts.getDepth();
+            idleQueueing = queueingEnabled;
+            idleEvents = eventSequence;
+            idleEffects = hwiEffects;
+            System.arraycopy(registers, 0, idleRegisters, 0, 8);
+        }
+        idleTime = now;
+    }
+
     public void tick() {
+        if (cycles >= eventCycles) runEvents();
         cycles++;
 
         if (isOnFire) {
@@ -218,49 +551,50 @@ public class DCPU
             for (int i = 0; i < len; i++) {
                 ram[(pos + i) & 0xFFFF] = val;
             }
+            written(pos, len);
         }
 
         if (isSkipping) {
-            char opcode = ram[pc];
-            int cmd = opcode & 0x1F;
-            pc = (char)(pc + getInstructionLength(opcode));
-            if ((cmd >= 16) && (cmd <= 23))
-                isSkipping = true;
-            else {
-                isSkipping = false;
-            }
+            int entry = decoded[pc];
+            if (entry == 0) entry = decode(pc);
+            pc = (char)(pc + (entry >> LENGTH_SHIFT & 0x3));
+            isSkipping = (entry & CONDITIONAL) != 0;
             return;
         }
 
         if (!queueingEnabled) {
-            if (ip != iwp) {
-                char a = interrupts[ip = ip + 1 & 0xFF];
+            int a = interrupts.poll(frameTime + cycles);
+            if (a >= 0) {
                 if (ia > 0) {
                     queueingEnabled = true;
-                    ram[--sp & 0xFFFF] = pc;
-                    ram[--sp & 0xFFFF] = registers[0];
-                    registers[0] = a;
+                    push(pc);
+                    push(registers[0]);
+                    registers[0] = (char) a;
                     pc = ia;
+                    if (profiler != null) profiler.call(pc, true);
                 }
             }
         }
 
-        char opcode = ram[pc++];
+        int entry = decoded[pc];
+        if (entry == 0) entry = decode(pc);
+        if (profiler != null) profiler.instruction(pc, ram[pc]);
+        pc++;
 
-        int cmd = opcode & 0x1F;
-        if (cmd == 0) {
-            cmd = opcode >> 5 & 0x1F;
+        int cmd = entry & 0x3F;
+        if (cmd >= 32) {
+            cmd -= 32;
             if (cmd != 0)
             {
-                int atype = opcode >> 10 & 0x3F;
-                int aaddr = getAddrA(atype);
-                char a = get(aaddr);
+                int aop = entry >> A_SHIFT & 0x3FF;
+                char a = read(aop, true);
 
                 switch (cmd) {
                     case 1: //JSR
                         cycles += 2;
-                        ram[--sp & 0xFFFF] = pc;
+                        push(pc);
                         pc = a;
+                        if (profiler != null) profiler.call(pc, false);
                         break;
 //        case 7: //HCF
 //          cycles += 8;
@@ -271,7 +605,7 @@ public class DCPU
                         interrupt(a);
                         break;
                     case 9: //IAG
-                        set(aaddr, ia);
+                        write(aop, ia);
                         break;
                     case 10: //IAS
                         ia = a;
@@ -294,24 +628,26 @@ public class DCPU
                         break;
                     case 16: //HWN
                         cycles++;
-                        set(aaddr, (char)hardware.size());
+                        write(aop, (char)hardware.length);
                         break;
-                    case 17: //HWQ
+                    case 17: { //HWQ
                         cycles += 3;
-                        synchronized (hardware) {
-                            if ((a >= 0) && (a < hardware.size())) {
-                                ((DCPUHardware)hardware.get(a)).query();
-                            }
+                        DCPUHardware[] devices = hardware;
+                        if (a < devices.length) {
+                            devices[a].query();
                         }
                         break;
-                    case 18: //HWI
+                    }
+                    case 18: { //HWI
                         cycles += 3;
-                        synchronized (hardware) {
-                            if ((a >= 0) && (a < hardware.size())) {
-                                ((DCPUHardware)hardware.get(a)).interrupt();
-                            }
+                        DCPUHardware[] devices = hardware;
+                        if (a < devices.length) {
+                            if (!devices[a].isIdempotent()) hwiEffects++;
+                            if (profiler != null) profiler.hardwareInterrupt(a);
+                            devices[a].interrupt();
                         }
                         break;
+                    }
                     case 2:
                     case 3:
                     case 4:
@@ -325,13 +661,11 @@ public class DCPU
                 }
             }
         } else {
-            int atype = opcode >> 10 & 0x3F;
-
-            char a = getValA(atype);
+            int aop = entry >> A_SHIFT & 0x3FF;
+            char a = read(aop, true);
 
-            int btype = opcode >> 5 & 0x1F;
-            int baddr = getAddrB(btype);
-            char b = get(baddr);
+            int bop = entry >> B_SHIFT & 0x7F;
+            char b = read(bop, false);
 
             switch (cmd) {
                 case 1: //SET
@@ -462,177 +796,257 @@ public class DCPU
                     break;
                 }case 30: //STI
                     b = a;
-                    set(baddr, b);
+                    write(bop, b);
                     registers[6]++;
                     registers[7]++;
                     return;
                 case 31: //STD
                     b = a;
-                    set(baddr, b);
+                    write(bop, b);
                     registers[6]--;
                     registers[7]--;
                     return;
                 case 24:
                 case 25:
             }
-            set(baddr, b);
+            write(bop, b);
         }
     }
 
+    /**
+     * Queues an interrupt. Safe to call from any thread; what happens when
+     * the queue is full depends on getInterruptQueue().getOverflow().
+     */
     public void interrupt(char a)
     {
-        interrupts[iwp = iwp + 1 & 0xFF] = a;
-        if (iwp == ip) isOnFire = true;
+        if (!interrupts.offer(a, getTime()) && interrupts.getOverflow() == InterruptQueue.Overflow.FIRE) {
+            isOnFire = true;
+        }
+    }
+
+    public InterruptQueue getInterruptQueue() {
+        return interrupts;
     }
 
+    /**
+     * Ticks every device at the end of a frame. The caller then takes
+     * cyclesPerFrame off cycles, as runFrame() does.
+     */
     public void tickHardware() {
-        synchronized (hardware) {
-            for (int i = 0; i < hardware.size(); i++) {
-                ((DCPUHardware)hardware.get(i)).tick60hz();
-            }
+        DCPUHardware[] devices = hardware;
+        for (int i = 0; i < devices.length; i++) {
+            devices[i].tick60hz();
+        }
+        frameTime += cyclesPerFrame;
+        updateEventCycles();
+        // Devices may have changed, so the next loop iteration has to be compared afresh
+        idleHead = -1;
+        measureSpeed();
+    }
+
+    /**
+     * Updates getMHz() once a second of wall clock time, counted in whole
+     * frames, and tells the speed listener.
+     */
+    private void measureSpeed() {
+        long now = System.nanoTime();
+        if (speedFrames++ == 0) {
+            speedTime = now;
+        } else if (now - speedTime >= 1000000000L) {
+            mhz = (speedFrames - 1) * (double) cyclesPerFrame * 1000.0 / (now - speedTime);
+            speedTime = now;
+            speedFrames = 1;
+            SpeedListener listener = speedListener;
+            if (listener != null) listener.speedMeasured(this, mhz);
+        }
+    }
+
+    /**
+     * Cycles run since the machine was created. Device events are scheduled
+     * in these terms.
+     */
+    public long getTime() {
+        return frameTime + cycles;
+    }
+
+    /**
+     * Runs task on the CPU thread before the first instruction that starts at
+     * or after cycle time. A time in the past runs before the next
+     * instruction. Only call this from the CPU thread, for example from a
+     * device's interrupt() or from another event.
+     */
+    public ScheduledEvent schedule(long time, Runnable task) {
+        ScheduledEvent event = new ScheduledEvent(time, eventSequence++, task);
+        events.add(event);
+        updateEventCycles();
+        return event;
+    }
+
+    /**
+     * Removes an event that has not run yet. null is ignored.
+     */
+    public void cancel(ScheduledEvent event) {
+        if (event != null && events.remove(event)) {
+            updateEventCycles();
+        }
+    }
+
+    private void runEvents() {
+        ScheduledEvent event;
+        while ((event = events.peek()) != null && event.time <= frameTime + cycles) {
+            events.poll();
+            event.task.run();
+            idleHead = -1;
+        }
+        updateEventCycles();
+    }
+
+    private void updateEventCycles() {
+        ScheduledEvent next = events.peek();
+        if (next == null) {
+            eventCycles = Integer.MAX_VALUE;
+        } else {
+            eventCycles = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, next.time - frameTime));
         }
     }
 
     public boolean addHardware(DCPUHardware hw) {
-        synchronized (hardware) {
-            return hardware.add(hw);
+        synchronized (hardwareLock) {
+            DCPUHardware[] devices = Arrays.copyOf(hardware, hardware.length + 1);
+            devices[devices.length - 1] = hw;
+            hardware = devices;
+            return true;
         }
     }
 
     public boolean removeHardware(DCPUHardware hw) {
-        synchronized (hardware) {
-            return hardware.remove(hw);
+        synchronized (hardwareLock) {
+            DCPUHardware[] devices = hardware;
+            for (int i = 0; i < devices.length; i++) {
+                if (devices[i] == hw) {
+                    DCPUHardware[] removed = new DCPUHardware[devices.length - 1];
+                    System.arraycopy(devices, 0, removed, 0, i);
+                    System.arraycopy(devices, i + 1, removed, i, removed.length - i);
+                    hardware = removed;
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
     public List<DCPUHardware> getHardware() {
-        //TODO sync elsewhere
-        synchronized (hardware) {
-            return new ArrayList<DCPUHardware>(hardware);
+        return new ArrayList<DCPUHardware>(Arrays.asList(hardware));
+    }
+
+    /**
+     * The current device table without copying. The array is never modified,
+     * add and remove replace it, so do not write to it either.
+     */
+    public DCPUHardware[] getDevices() {
+        return hardware;
+    }
+
+    /**
+     * Sets the run speed as a multiple of real time. 0 runs unthrottled: frames
+     * still tick the hardware every cyclesPerFrame cycles, but never wait for
+     * the wall clock.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("Negative speed " + speed);
+        }
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Returns the emulated clock rate achieved over the last second, however
+     * the machine is run.
+     */
+    public double getMHz() {
+        return mhz;
+    }
+
+    /**
+     * Receives the emulated clock rate once a second, on the CPU thread.
+     */
+    public interface SpeedListener {
+        void speedMeasured(DCPU dcpu, double mhz);
+    }
+
+    /**
+     * Sets the listener told about getMHz() as it is updated, or null.
+     */
+    public void setSpeedListener(SpeedListener speedListener) {
+        this.speedListener = speedListener;
+    }
+
+    public void powerOn() {
+        for (DCPUHardware hw : getDevices()) {
+            hw.powerOn();
         }
     }
 
+    /**
+     * Runs one 60 Hz frame of emulated time.
+     */
+    public void runFrame() {
+        execute(cyclesPerFrame);
+        tickHardware();
+        cycles -= cyclesPerFrame;
+    }
+
     public void run() {
         (new Thread() {
             @Override
             public void run() {
-                for (DCPUHardware hw : hardware) {
-                    hw.powerOn();
-                }
-                int hz = 1000 * khz;
-                int cyclesPerFrame = hz / 60 + 1;
+                powerOn();
 
-                long nsPerFrame = 16666666L;
                 long nextTime = System.nanoTime();
 
                 while (true) {
-                    while (System.nanoTime() < nextTime) {
-                        try {
-                            Thread.sleep(1L);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                    double speed = DCPU.this.speed;
+                    if (speed > 0) {
+                        while (System.nanoTime() < nextTime) {
+                            try {
+                                Thread.sleep(1L);
+                            } catch (InterruptedException e) {
+                                e.printStackTrace();
+                            }
                         }
+                        nextTime += (long) (NS_PER_FRAME / speed);
+                    } else {
+                        nextTime = System.nanoTime();
                     }
-                    while (cycles < cyclesPerFrame) {
-                        tick();
-                    }
-                    tickHardware();
-                    cycles -= cyclesPerFrame;
-                    nextTime += nsPerFrame;
+                    runFrame();
                 }
             }
         }).start();
     }
 
     public void load(InputStream is) throws IOException {
-        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
-        int i = 0;
+        load(is, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Loads a RAM image in the given byte order. A short image leaves the
+     * rest of RAM zeroed.
+     */
+    public void load(InputStream is, ByteOrder order) throws IOException {
         try {
-            for (; i<ram.length; i++) {
-                ram[i] = dis.readChar();
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            for (; i<ram.length; i++) {
-                ram[i] = 0;
-            }
+            ImageLoader.load(is, ram, order);
         } finally {
-            dis.close();
+            written(0, ram.length);
         }
     }
 
     public static void main(String[] args) throws Exception {
-        final DCPU dcpu = new DCPU();
-
-        if(args.length > 0) {
-            File file = new File(args[0]);
-            InputStream is = new FileInputStream(file);
-            System.out.println("Loading bootrom: " + file.toString());
-            dcpu.load(is);
-        } else {
-            InputStream is = DCPU.class.getResourceAsStream("/admiral.bin");
-            System.out.println("Loading bootrom: " + DCPU.class.getResource("/admiral.bin").toString());
-            dcpu.load(is);
-        }
-
-        final VirtualClock clock = new VirtualClock();
-        clock.connectTo(dcpu);
-
-        final VirtualKeyboard kbd = new VirtualKeyboard();
-        kbd.connectTo(dcpu);
-
-        final VirtualFloppyDrive floppy = new VirtualFloppyDrive();
-        floppy.connectTo(dcpu);
-
-        if(args.length > 1) {
-            InputStream is = new FileInputStream(new File(args[1]));
-            floppy.insert(new FloppyDisk(is));
-        } else {
-            InputStream is = DCPU.class.getResourceAsStream("/floppy.bin");
-            floppy.insert(new FloppyDisk(is));
-        }
-
-
-        KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
-        manager.addKeyEventDispatcher(new KeyEventDispatcher() {
-            @Override
-            public boolean dispatchKeyEvent(KeyEvent e) {
-                //System.out.println("e = " + e);
-                if(e.getKeyCode() == KeyEvent.VK_ESCAPE) {
-                    System.exit(0);
-                }
-                if (e.getID() == KeyEvent.KEY_PRESSED) {
-                    kbd.keyPressed(e.getKeyCode(), e.getKeyChar());
-                } else if (e.getID() == KeyEvent.KEY_RELEASED) {
-                    kbd.keyReleased(e.getKeyCode(), e.getKeyChar());
-                } else if (e.getID() == KeyEvent.KEY_TYPED) {
-                    // kbd.keyTyped(e.getKeyCode(), e.getKeyChar());
-                }
-                return false;
-            }
-        });
-
-        final VirtualMonitor mon = new VirtualMonitor();
-        mon.connectTo(dcpu);
-
-        LEM1802Viewer view = new LEM1802Viewer();
-        view.attach(mon);
-
-        JFrame f = new JFrame("Megastage DCPU Emulator");
-        f.setSize(640, 400);
-        f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-
-        JPanel p = new JPanel();
-        p.setLayout(new BorderLayout());
-        p.add(view.canvas, BorderLayout.CENTER);
-
-        f.getContentPane().add(p);
-        f.setVisible(true);
-        f.createBufferStrategy(2);
-
-        dcpu.run();
-        view.canvas.setup();
+        // The desktop front-end lives in its own class so that loading DCPU never pulls in AWT
+        DesktopEmulator.main(args);
     }
 
-}
+}
\ No newline at end of file
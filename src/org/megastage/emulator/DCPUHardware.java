@@ -1,5 +1,8 @@
 package org.megastage.emulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Random;
 
 public abstract class DCPUHardware
@@ -34,6 +37,10 @@ public abstract class DCPUHardware
     return this;
   }
 
+  public int getType() {
+    return type;
+  }
+
   public void query() {
     this.dcpu.registers[0] = (char)(this.type & 0xFFFF);
     this.dcpu.registers[1] = (char)(this.type >> 16 & 0xFFFF);
@@ -54,6 +61,28 @@ public abstract class DCPUHardware
 	public void powerOn() {
 	}
 
+  /**
+   * Whether the interrupt() about to be sent with the current registers
+   * would leave the device, and the registers it sets, as an identical call
+   * just before did. DCPU skips idle loops that poll a device only if it is.
+   * Devices have to opt in, so the default is false.
+   */
+  public boolean isIdempotent() {
+    return false;
+  }
+
+  /**
+   * Writes the device registers for a Snapshot. Devices without state write nothing.
+   */
+  public void saveState(DataOutput out) throws IOException {
+  }
+
+  /**
+   * Reads back what saveState() wrote.
+   */
+  public void loadState(DataInput in) throws IOException {
+  }
+
   public static void main(String[] args) throws Exception {
     System.out.println("0x" + Integer.toHexString(new Random().nextInt()));
     System.out.println("0x" + Integer.toHexString(new Random().nextInt()));
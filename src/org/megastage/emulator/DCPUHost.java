@@ -0,0 +1,201 @@
+package org.megastage.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many DCPUs on a fixed pool of worker threads instead of a thread each.
+ *
+ * Every hosted machine is a task that runs one frame (DCPU.runFrame()) per
+ * slot. Tasks wait in a single queue ordered by the deadline of their next
+ * frame, and each worker takes whichever task is most overdue, so load is
+ * balanced across workers without any per-machine thread. A machine's pace
+ * follows DCPU.getSpeed(): real time, a multiple of it, or unthrottled.
+ *
+ * A machine that falls more than MAX_LAG_NS behind skips the missed frames
+ * instead of trying to catch up, and the skip is counted in its statistics.
+ *
+ * A machine whose frame throws is logged, marked failed and no longer
+ * scheduled. The worker goes on serving the other machines.
+ */
+public class DCPUHost {
+    static final long MAX_LAG_NS = 1000000000L;
+
+    private final DelayQueue<Guest> queue = new DelayQueue<Guest>();
+    private final List<Guest> guests = new ArrayList<Guest>();
+    private final ExecutorService workers;
+    private final int threads;
+
+    public DCPUHost() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DCPUHost(int threads) {
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DCPUHost-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void start() {
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Guest guest = queue.take();
+                            try {
+                                guest.runFrame();
+                            } catch (RuntimeException e) {
+                                guest.fail(e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // shutdown
+                    }
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Powers the machine on and schedules its first frame immediately.
+     */
+    public Guest add(DCPU dcpu) {
+        Guest guest = new Guest(dcpu);
+        dcpu.powerOn();
+        synchronized (guests) {
+            guests.add(guest);
+        }
+        queue.put(guest);
+        return guest;
+    }
+
+    /**
+     * Stops scheduling the machine. A frame already running finishes first.
+     */
+    public void remove(Guest guest) {
+        guest.removed = true;
+        queue.remove(guest);
+        synchronized (guests) {
+            guests.remove(guest);
+        }
+    }
+
+    public List<Guest> getGuests() {
+        synchronized (guests) {
+            return new ArrayList<Guest>(guests);
+        }
+    }
+
+    /**
+     * One hosted machine with its scheduling statistics. Lag is how long
+     * after its deadline a frame actually started.
+     */
+    public class Guest implements Delayed {
+        public final DCPU dcpu;
+        private long deadline = System.nanoTime();
+        private volatile boolean removed;
+        private volatile long lag;
+        private volatile long maxLag;
+        private volatile long frames;
+        private volatile long skipped;
+        private volatile RuntimeException failure;
+
+        Guest(DCPU dcpu) {
+            this.dcpu = dcpu;
+        }
+
+        private void runFrame() {
+            if (removed) return;
+
+            long now = System.nanoTime();
+            if (frames == 0) deadline = now;
+            long late = dcpu.getSpeed() > 0 ? now - deadline : 0;
+            lag = late;
+            if (late > maxLag) maxLag = late;
+
+            dcpu.runFrame();
+            frames++;
+
+            double speed = dcpu.getSpeed();
+            if (speed <= 0) {
+                deadline = System.nanoTime();
+            } else {
+                deadline += (long) (DCPU.NS_PER_FRAME / speed);
+                if (late > MAX_LAG_NS) {
+                    long behind = now - deadline;
+                    skipped += behind / (long) (DCPU.NS_PER_FRAME / speed);
+                    deadline = now;
+                }
+            }
+
+            if (!removed) queue.put(this);
+        }
+
+        private void fail(RuntimeException e) {
+            failure = e;
+            System.err.println("DCPUHost: machine failed after " + frames + " frames, no longer running it");
+            e.printStackTrace();
+        }
+
+        /**
+         * Whether a frame of this machine threw, which stopped it.
+         */
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * What the failed frame threw, or null.
+         */
+        public RuntimeException getFailure() {
+            return failure;
+        }
+
+        public double getLagMillis() {
+            return lag / 1000000.0;
+        }
+
+        public double getMaxLagMillis() {
+            return maxLag / 1000000.0;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getSkippedFrames() {
+            return skipped;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long d = deadline - ((Guest) o).deadline;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+}
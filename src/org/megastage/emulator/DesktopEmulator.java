@@ -0,0 +1,140 @@
+package org.megastage.emulator;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+
+/**
+ * Swing front-end: a window with an LEM1802Viewer and the AWT keyboard
+ * wired to the VirtualKeyboard. See HeadlessEmulator for running without
+ * a display.
+ */
+public class DesktopEmulator {
+    public static void main(String[] args) throws Exception {
+        final DCPU dcpu = new DCPU();
+        dcpu.setRecompiling(Boolean.getBoolean("dcpu.recompile"));
+        dcpu.setIdleSkipping(!"false".equals(System.getProperty("dcpu.idle")));
+        dcpu.getInterruptQueue().setOverflow(InterruptQueue.Overflow.valueOf(System.getProperty("dcpu.overflow", "fire").toUpperCase()));
+        String speed = System.getProperty("dcpu.speed", "1");
+        dcpu.setSpeed(speed.equals("turbo") ? 0 : Double.parseDouble(speed));
+
+        if(args.length > 0) {
+            File file = new File(args[0]);
+            InputStream is = new FileInputStream(file);
+            System.out.println("Loading bootrom: " + file.toString());
+            dcpu.load(is);
+        } else {
+            InputStream is = DCPU.class.getResourceAsStream("/admiral.bin");
+            System.out.println("Loading bootrom: " + DCPU.class.getResource("/admiral.bin").toString());
+            dcpu.load(is);
+        }
+
+        final VirtualClock clock = new VirtualClock();
+        clock.connectTo(dcpu);
+
+        final VirtualKeyboard kbd = new VirtualKeyboard();
+        kbd.connectTo(dcpu);
+
+        final VirtualFloppyDrive floppy = new VirtualFloppyDrive();
+        floppy.connectTo(dcpu);
+
+        if(args.length > 1) {
+            InputStream is = new FileInputStream(new File(args[1]));
+            floppy.insert(new FloppyDisk(is));
+        } else {
+            InputStream is = DCPU.class.getResourceAsStream("/floppy.bin");
+            floppy.insert(new FloppyDisk(is));
+        }
+
+
+        String replay = System.getProperty("dcpu.replay");
+        String record = System.getProperty("dcpu.record");
+        if (replay != null) {
+            kbd.replay(InputLog.read(new FileReader(replay)));
+        } else if (record != null) {
+            kbd.record(new InputLog(new FileWriter(record)));
+        }
+
+        KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
+        manager.addKeyEventDispatcher(new KeyEventDispatcher() {
+            @Override
+            public boolean dispatchKeyEvent(KeyEvent e) {
+                //System.out.println("e = " + e);
+                if(e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    System.exit(0);
+                }
+                if (e.getID() == KeyEvent.KEY_PRESSED) {
+                    kbd.postKeyPressed(e.getKeyCode(), e.getKeyChar());
+                } else if (e.getID() == KeyEvent.KEY_RELEASED) {
+                    kbd.postKeyReleased(e.getKeyCode(), e.getKeyChar());
+                } else if (e.getID() == KeyEvent.KEY_TYPED) {
+                    // kbd.keyTyped(e.getKeyCode(), e.getKeyChar());
+                }
+                return false;
+            }
+        });
+
+        final VirtualMonitor mon = new VirtualMonitor();
+        mon.connectTo(dcpu);
+
+        LEM1802Viewer view = new LEM1802Viewer();
+        view.attach(mon);
+
+        final JFrame f = new JFrame("Megastage DCPU Emulator");
+        f.setSize(640, 400);
+        f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        JPanel p = new JPanel();
+        p.setLayout(new BorderLayout());
+        p.add(view.canvas, BorderLayout.CENTER);
+
+        f.getContentPane().add(p);
+        f.setVisible(true);
+        f.createBufferStrategy(2);
+
+        if (Boolean.getBoolean("lem.metrics")) {
+            view.setFrameListener(new LEM1802Viewer.FrameListener() {
+                private long reportTime = System.nanoTime();
+                private long frames;
+                private long nanos;
+                private long maxNanos;
+                private long lastGcCount = -1;
+
+                @Override
+                public void frameRendered(long frameNanos, long gcCount, long gcMillis) {
+                    frames++;
+                    nanos += frameNanos;
+                    maxNanos = Math.max(maxNanos, frameNanos);
+                    long now = System.nanoTime();
+                    if (now - reportTime >= 1000000000L) {
+                        System.out.println(String.format("LEM1802: %d frames, %.3f ms avg, %.3f ms max, %d GCs (%d ms total)",
+                                frames, nanos / 1e6 / frames, maxNanos / 1e6,
+                                lastGcCount < 0 ? 0 : gcCount - lastGcCount, gcMillis));
+                        lastGcCount = gcCount;
+                        reportTime = now;
+                        frames = 0;
+                        nanos = 0;
+                        maxNanos = 0;
+                    }
+                }
+            });
+        }
+
+        dcpu.run();
+        view.canvas.setup();
+
+        new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                f.setTitle(String.format("Megastage DCPU Emulator - %.2f MHz", dcpu.getMHz()));
+            }
+        }).start();
+    }
+}
@@ -1,37 +1,44 @@
 package org.megastage.emulator;
 
 import java.io.*;
+import java.nio.ByteOrder;
 
 public class FloppyDisk {
-	public char[] data = new char[737280];
+	public static final int WORDS_PER_DISK = 737280;
+
+	/**
+	 * The whole image on the heap, or null for disks that keep it elsewhere.
+	 */
+	public char[] data;
 
 	private boolean writeProtected;
 	private VirtualFloppyDrive drive;
 
+	protected FloppyDisk() {
+	}
+
     public FloppyDisk(InputStream is) {
+        this(is, ByteOrder.BIG_ENDIAN);
+    }
+
+    public FloppyDisk(InputStream is, ByteOrder order) {
+        data = new char[WORDS_PER_DISK];
         try {
-            load(is);
+            load(is, order);
         } catch (IOException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
     }
     
 	public void load(InputStream is) throws IOException {
-		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
-		int i = 0;
-		try {
-			for (; i<data.length; i++) {
-				data[i] = dis.readChar();
-			}
-		} catch (ArrayIndexOutOfBoundsException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			for (; i<data.length; i++) {
-				data[i] = 0;
-			}
-        } finally {
-			dis.close();
-		}	
+		load(is, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Loads an image in the given byte order. A short image reads as zeros past its end.
+	 */
+	public void load(InputStream is, ByteOrder order) throws IOException {
+		ImageLoader.load(is, data, order);
 	}
 
 	public void save(File file) throws IOException {
@@ -46,6 +53,27 @@ public class FloppyDisk {
 		dos.close();
 	}
 	
+	/**
+	 * Copies the first length words of a sector into dst.
+	 */
+	public void readSector(int sector, char[] dst, int offset, int length) {
+		System.arraycopy(data, sector * VirtualFloppyDrive.WORDS_PER_SECTOR, dst, offset, length);
+	}
+
+	/**
+	 * Overwrites the first length words of a sector from src.
+	 */
+	public void writeSector(int sector, char[] src, int offset, int length) {
+		System.arraycopy(src, offset, data, sector * VirtualFloppyDrive.WORDS_PER_SECTOR, length);
+	}
+
+	/**
+	 * Pushes sectors written since the last flush to backing storage, if the
+	 * disk has any.
+	 */
+	public void flush() throws IOException {
+	}
+
 	public boolean isWriteProtected() {
 		return writeProtected;
 	}
@@ -0,0 +1,315 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs the emulator without a display: no AWT, no render thread.
+ *
+ * Usage: HeadlessEmulator [options] [bootrom [floppy]]
+ *   -input FILE    type the contents of FILE into the keyboard, - for stdin
+ *   -keydelay N    frames between scripted keystrokes (default 3)
+ *   -cycles N      stop after N cycles
+ *   -pc ADDR       stop when PC reaches ADDR (hex)
+ *   -ram ADDR=VAL  stop when the RAM word at ADDR holds VAL (hex, checked every frame)
+ *   -until TEXT    stop when TEXT is on the screen (checked every frame)
+ *   -map           memory-map the floppy file instead of loading it; writes go to the file
+ *   -le            bootrom and floppy images are little-endian
+ *   -restore FILE  start from a snapshot instead of from the bootrom
+ *   -snapshot FILE save a snapshot of the machine when it stops
+ *   -record FILE   write the keys typed, stamped with their frames, to FILE
+ *   -replay FILE   type the keys from a recorded FILE at their frames
+ *   -profile NAME  profile the guest program; writes NAME.txt and NAME.folded
+ *
+ * The input is read on its own thread, so a pipe that closes ends it. With
+ * no stop condition the run stops when the input ends.
+ *
+ * The machine always runs unthrottled. The achieved speed is printed to
+ * stderr once a second. The exit status is 0 when a stop condition was met.
+ */
+public class HeadlessEmulator {
+    public final DCPU dcpu = new DCPU();
+    public final VirtualClock clock = new VirtualClock();
+    public final VirtualKeyboard keyboard = new VirtualKeyboard();
+    public final VirtualFloppyDrive floppy = new VirtualFloppyDrive();
+    public final VirtualMonitor monitor = new VirtualMonitor();
+
+    // Characters read from the input, then -1 once it ended
+    private BlockingQueue<Integer> input;
+    private int keyDelay = 3;
+    private long stopCycles = -1;
+    private int stopPc = -1;
+    private int stopRamAddr = -1;
+    private char stopRamValue;
+    private String stopText;
+
+    private long elapsed;
+
+    public HeadlessEmulator() {
+        clock.connectTo(dcpu);
+        keyboard.connectTo(dcpu);
+        floppy.connectTo(dcpu);
+        monitor.connectTo(dcpu);
+    }
+
+    /**
+     * Starts a daemon thread that reads input to its end, so that run() never
+     * blocks on it.
+     */
+    public void setInput(final Reader reader) {
+        final BlockingQueue<Integer> input = new LinkedBlockingQueue<Integer>();
+        Thread thread = new Thread("input") {
+            @Override
+            public void run() {
+                try {
+                    int c;
+                    while ((c = reader.read()) >= 0) {
+                        input.add(c);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    input.add(-1);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        this.input = input;
+    }
+
+    public void setKeyDelay(int frames) {
+        this.keyDelay = frames;
+    }
+
+    public void stopAtCycles(long cycles) {
+        this.stopCycles = cycles;
+    }
+
+    public void stopAtPc(int pc) {
+        this.stopPc = pc;
+    }
+
+    public void stopWhenRam(int addr, char value) {
+        if (addr < 0 || addr > 0xFFFF) {
+            throw new IllegalArgumentException("RAM address out of range " + Integer.toHexString(addr));
+        }
+        this.stopRamAddr = addr;
+        this.stopRamValue = value;
+    }
+
+    public void stopWhenText(String text) {
+        this.stopText = text;
+    }
+
+    /**
+     * Total cycles run since the machine was started.
+     */
+    public long getCycles() {
+        return elapsed + dcpu.cycles;
+    }
+
+    /**
+     * Powers the machine on and runs it until a stop condition is met.
+     * Returns a description of the condition.
+     */
+    public String run() throws IOException {
+        dcpu.powerOn();
+        long textChanges = -1;
+
+        for (int frame = 0; ; frame++) {
+            if (input != null && frame % keyDelay == 0) {
+                Integer c = input.poll();
+                if (c != null && c >= 0) {
+                    type((char) c.intValue());
+                } else if (c != null) {
+                    input = null;
+                    if (stopCycles < 0 && stopPc < 0 && stopRamAddr < 0 && stopText == null) {
+                        return "input ended";
+                    }
+                }
+            }
+
+            int limit = DCPU.cyclesPerFrame;
+            if (stopCycles >= 0 && stopCycles - elapsed < limit) {
+                limit = (int) Math.max(stopCycles - elapsed, 0);
+            }
+
+            if (stopPc >= 0) {
+                while (dcpu.cycles < limit) {
+                    if (dcpu.pc == stopPc && !dcpu.isSkipping) {
+                        return "pc reached " + Integer.toHexString(stopPc);
+                    }
+                    dcpu.tick();
+                }
+            } else {
+                dcpu.execute(limit);
+            }
+
+            if (limit < DCPU.cyclesPerFrame) {
+                return "ran " + stopCycles + " cycles";
+            }
+
+            dcpu.tickHardware();
+            dcpu.cycles -= DCPU.cyclesPerFrame;
+            elapsed += DCPU.cyclesPerFrame;
+
+            if (stopRamAddr >= 0 && dcpu.ram[stopRamAddr] == stopRamValue) {
+                return "ram " + Integer.toHexString(stopRamAddr) + " = " + Integer.toHexString(stopRamValue);
+            }
+            if (stopText != null && monitor.getTextChanges() != textChanges) {
+                textChanges = monitor.getTextChanges();
+                if (monitor.getScreenText().contains(stopText)) {
+                    return "screen shows " + stopText;
+                }
+            }
+        }
+    }
+
+    /**
+     * Presses and releases the key for c the way an AWT key event would. The
+     * key takes effect at the end of the current frame.
+     */
+    public void type(char c) {
+        if (c == '\r') return;
+        int keyCode = c == '\n' ? 10 : Character.toUpperCase(c);
+        keyboard.postKeyPressed(keyCode, c);
+        keyboard.postKeyReleased(keyCode, c);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeadlessEmulator emu = new HeadlessEmulator();
+        emu.dcpu.setRecompiling(Boolean.getBoolean("dcpu.recompile"));
+        emu.dcpu.setIdleSkipping(!"false".equals(System.getProperty("dcpu.idle")));
+        emu.dcpu.getInterruptQueue().setOverflow(InterruptQueue.Overflow.valueOf(System.getProperty("dcpu.overflow", "fire").toUpperCase()));
+        String rom = null;
+        String disk = null;
+        boolean map = false;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        String restore = null;
+        String snapshot = null;
+        InputLog recording = null;
+        String profile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-input")) {
+                String name = args[++i];
+                InputStream is = name.equals("-") ? System.in : new FileInputStream(name);
+                emu.setInput(new InputStreamReader(is, "ISO-8859-1"));
+            } else if (arg.equals("-keydelay")) {
+                emu.setKeyDelay(Integer.parseInt(args[++i]));
+            } else if (arg.equals("-cycles")) {
+                emu.stopAtCycles(Long.parseLong(args[++i]));
+            } else if (arg.equals("-pc")) {
+                emu.stopAtPc(Integer.parseInt(args[++i], 16));
+            } else if (arg.equals("-ram")) {
+                String[] cond = args[++i].split("=");
+                emu.stopWhenRam(Integer.parseInt(cond[0], 16), (char) Integer.parseInt(cond[1], 16));
+            } else if (arg.equals("-until")) {
+                emu.stopWhenText(args[++i]);
+            } else if (arg.equals("-map")) {
+                map = true;
+            } else if (arg.equals("-le")) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (arg.equals("-restore")) {
+                restore = args[++i];
+            } else if (arg.equals("-snapshot")) {
+                snapshot = args[++i];
+            } else if (arg.equals("-record")) {
+                recording = new InputLog(new FileWriter(args[++i]));
+                emu.keyboard.record(recording);
+            } else if (arg.equals("-replay")) {
+                emu.keyboard.replay(InputLog.read(new FileReader(args[++i])));
+            } else if (arg.equals("-profile")) {
+                profile = args[++i];
+                emu.dcpu.setProfiler(new Profiler(emu.dcpu));
+            } else if (rom == null) {
+                rom = arg;
+            } else {
+                disk = arg;
+            }
+        }
+
+        if (rom != null) {
+            System.out.println("Loading bootrom: " + rom);
+            emu.dcpu.load(new FileInputStream(rom), order);
+        } else {
+            System.out.println("Loading bootrom: " + DCPU.class.getResource("/admiral.bin").toString());
+            emu.dcpu.load(DCPU.class.getResourceAsStream("/admiral.bin"));
+        }
+        if (disk != null && map) {
+            emu.floppy.insert(new MappedFloppyDisk(new File(disk), false, order));
+        } else if (disk != null) {
+            emu.floppy.insert(new FloppyDisk(new FileInputStream(disk), order));
+        } else {
+            emu.floppy.insert(new FloppyDisk(DCPU.class.getResourceAsStream("/floppy.bin")));
+        }
+
+        if (restore != null) {
+            System.out.println("Restoring snapshot: " + restore);
+            FileInputStream fis = new FileInputStream(restore);
+            try {
+                Snapshot.read(fis).restore(emu.dcpu);
+            } finally {
+                fis.close();
+            }
+        }
+
+        emu.dcpu.setSpeedListener(new DCPU.SpeedListener() {
+            @Override
+            public void speedMeasured(DCPU dcpu, double mhz) {
+                System.err.println(String.format("%.2f MHz", mhz));
+            }
+        });
+
+        long start = System.nanoTime();
+        String reason = emu.run();
+        long ns = System.nanoTime() - start;
+
+        DCPU dcpu = emu.dcpu;
+        System.out.println("Stopped: " + reason);
+        System.out.println(String.format("cycles=%d (%.2f MHz) pc=%04x sp=%04x ex=%04x ia=%04x",
+                emu.getCycles(), emu.getCycles() * 1000.0 / ns, (int) dcpu.pc, (int) dcpu.sp, (int) dcpu.ex, (int) dcpu.ia));
+        StringBuilder regs = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            regs.append(String.format("%s%c=%04x", i == 0 ? "" : " ", "ABCXYZIJ".charAt(i), (int) dcpu.registers[i]));
+        }
+        System.out.println(regs);
+        InterruptQueue interrupts = dcpu.getInterruptQueue();
+        System.out.println(String.format("interrupts: %d taken, max depth %d, %d overflows, %d dropped, latency %.1f avg %d max cycles",
+                interrupts.getDelivered(), interrupts.getMaxDepth(), interrupts.getOverflows(), interrupts.getDropped(),
+                interrupts.getAverageLatency(), interrupts.getMaxLatency()));
+        if (snapshot != null) {
+            FileOutputStream fos = new FileOutputStream(snapshot);
+            try {
+                Snapshot.take(dcpu).write(fos);
+            } finally {
+                fos.close();
+            }
+        }
+        if (profile != null) {
+            FileWriter flat = new FileWriter(profile + ".txt");
+            try {
+                dcpu.getProfiler().writeFlat(flat, 100);
+            } finally {
+                flat.close();
+            }
+            FileWriter collapsed = new FileWriter(profile + ".folded");
+            try {
+                dcpu.getProfiler().writeCollapsed(collapsed);
+            } finally {
+                collapsed.close();
+            }
+        }
+        if (recording != null) {
+            recording.close();
+        }
+        if (emu.floppy.getDisk() != null) {
+            emu.floppy.getDisk().flush();
+        }
+        System.exit(0);
+    }
+}
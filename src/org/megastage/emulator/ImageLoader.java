@@ -0,0 +1,71 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads ROM and disk images into word arrays.
+ *
+ * The image is read in bulk into a ByteBuffer and converted to words in one
+ * call, instead of one readChar() per word. Files are read through their
+ * FileChannel. Images are big-endian unless another byte order is given.
+ * An image shorter than the array fills what it can, the rest of the array
+ * is zeroed and a trailing odd byte is ignored; words past the end of the
+ * array are not read.
+ */
+public final class ImageLoader {
+    private ImageLoader() {
+    }
+
+    /**
+     * Reads a big-endian image into dst and closes the stream. Returns the
+     * number of words read.
+     */
+    public static int load(InputStream is, char[] dst) throws IOException {
+        return load(is, dst, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Reads an image in the given byte order into dst and closes the stream.
+     * Returns the number of words read.
+     */
+    public static int load(InputStream is, char[] dst, ByteOrder order) throws IOException {
+        ReadableByteChannel channel = is instanceof FileInputStream
+                ? ((FileInputStream) is).getChannel()
+                : Channels.newChannel(is);
+        try {
+            return load(channel, dst, order);
+        } finally {
+            is.close();
+        }
+    }
+
+    public static int load(File file, char[] dst, ByteOrder order) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            return load(channel, dst, order);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static int load(ReadableByteChannel channel, char[] dst, ByteOrder order) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(dst.length * 2);
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            // keep reading until the array is full or the image ends
+        }
+        bytes.flip();
+
+        int words = bytes.remaining() / 2;
+        bytes.order(order).asCharBuffer().get(dst, 0, words);
+        for (int i = words; i < dst.length; i++) {
+            dst[i] = 0;
+        }
+        return words;
+    }
+}
@@ -0,0 +1,105 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keyboard events stamped with the frame they took effect in, for recording
+ * a session and replaying it exactly.
+ *
+ * Frames are counted by the keyboard from the moment recording or replay
+ * starts, so a log replays the same way only from the same starting state:
+ * a fresh boot or the same Snapshot.
+ *
+ * The text form has one event per line: the frame, P or R for press or
+ * release, the key code and the key char as a number.
+ */
+public class InputLog {
+    public static class Event {
+        public final long frame;
+        public final boolean pressed;
+        public final int keyCode;
+        public final char keyChar;
+
+        public Event(long frame, boolean pressed, int keyCode, char keyChar) {
+            this.frame = frame;
+            this.pressed = pressed;
+            this.keyCode = keyCode;
+            this.keyChar = keyChar;
+        }
+
+        @Override
+        public String toString() {
+            return frame + " " + (pressed ? "P" : "R") + " " + keyCode + " " + (int) keyChar;
+        }
+    }
+
+    private final List<Event> events = new ArrayList<Event>();
+    private final PrintWriter out;
+
+    public InputLog() {
+        this.out = null;
+    }
+
+    /**
+     * A log that also writes each event to out as soon as it is recorded, so
+     * that the log survives a crash of the emulator.
+     */
+    public InputLog(Writer out) {
+        this.out = new PrintWriter(out, true);
+    }
+
+    public static InputLog read(Reader in) throws IOException {
+        InputLog log = new InputLog();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length != 4 || !(parts[1].equals("P") || parts[1].equals("R"))) {
+                throw new IOException("Bad input log line: " + line);
+            }
+            try {
+                log.events.add(new Event(Long.parseLong(parts[0]), parts[1].equals("P"),
+                        Integer.parseInt(parts[2]), (char) Integer.parseInt(parts[3])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad input log line: " + line);
+            }
+        }
+        return log;
+    }
+
+    public void write(Writer writer) throws IOException {
+        PrintWriter pw = new PrintWriter(writer);
+        synchronized (events) {
+            for (Event event : events) {
+                pw.println(event);
+            }
+        }
+        pw.flush();
+    }
+
+    public void add(Event event) {
+        synchronized (events) {
+            events.add(event);
+        }
+        if (out != null) {
+            out.println(event);
+        }
+    }
+
+    public List<Event> getEvents() {
+        synchronized (events) {
+            return Collections.unmodifiableList(new ArrayList<Event>(events));
+        }
+    }
+
+    public void close() {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.megastage.emulator;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The DCPU interrupt queue: a bounded ring that any number of threads may
+ * add to without locking and that the CPU thread takes from.
+ *
+ * A producer reserves a slot by advancing the tail with a CAS and then
+ * publishes the message into it. The consumer only takes a message once it
+ * is published, so a slow producer delays the messages behind it but never
+ * loses them.
+ *
+ * What happens when the queue is full is set by the Overflow policy. The
+ * queue also counts what went through it: the current and highest depth,
+ * overflows, dropped messages, and the latency in cycles between an
+ * interrupt being raised and being taken by the CPU.
+ */
+public class InterruptQueue {
+    public enum Overflow {
+        /** The DCPU-16 behaviour: the CPU catches fire. */
+        FIRE,
+        /** The new message is dropped. */
+        DROP,
+        /**
+         * The producer waits until the CPU has taken a message. The CPU
+         * thread itself never waits; its messages are dropped instead.
+         */
+        BLOCK
+    }
+
+    private static final int PUBLISHED = 0x10000;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicIntegerArray slots;
+    private final long[] times;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile Overflow overflow = Overflow.FIRE;
+    private volatile Thread consumer;
+
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long delivered;
+    private volatile long totalLatency;
+    private volatile long maxLatency;
+    private volatile int maxDepth;
+
+    /**
+     * capacity is rounded up to a power of two.
+     */
+    public InterruptQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new AtomicIntegerArray(size);
+        this.times = new long[size];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * Marks the calling thread as the one that takes messages, so that
+     * the BLOCK policy never makes it wait for itself.
+     */
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Adds a message raised at cycle time. Returns false if the queue was
+     * full and the message was not added; with the FIRE policy the caller
+     * then sets the CPU on fire.
+     */
+    public boolean offer(char message, long time) {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= capacity) {
+                if (overflow == Overflow.BLOCK && Thread.currentThread() != consumer) {
+                    LockSupport.parkNanos(10000L);
+                    continue;
+                }
+                overflows.incrementAndGet();
+                if (overflow == Overflow.DROP || overflow == Overflow.BLOCK) {
+                    dropped.incrementAndGet();
+                }
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                int slot = (int) t & mask;
+                times[slot] = time;
+                slots.set(slot, PUBLISHED | message);
+
+                int depth = (int) (t + 1 - head);
+                if (depth > maxDepth) maxDepth = depth;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Whether there is nothing to take. Call on the CPU thread.
+     */
+    public boolean isEmpty() {
+        return head == tail.get();
+    }
+
+    /**
+     * Takes the oldest message, or returns -1 if there is none yet. time is
+     * the current cycle, for the latency counters. Call on the CPU thread.
+     */
+    public int poll(long time) {
+        long h = head;
+        if (h == tail.get()) return -1;
+        int slot = (int) h & mask;
+        int value = slots.get(slot);
+        if (value == 0) return -1;
+        long latency = time - times[slot];
+        slots.set(slot, 0);
+        head = h + 1;
+
+        delivered++;
+        totalLatency += latency;
+        if (latency > maxLatency) maxLatency = latency;
+        return value & 0xFFFF;
+    }
+
+    /**
+     * The messages waiting, oldest first. Call on the CPU thread while no
+     * other thread adds messages.
+     */
+    public char[] toArray() {
+        long h = head;
+        int count = (int) (tail.get() - h);
+        char[] messages = new char[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = (char) slots.get((int) (h + i) & mask);
+        }
+        return messages;
+    }
+
+    /**
+     * Drops all waiting messages. Call on the CPU thread while no other
+     * thread adds messages.
+     */
+    public void clear() {
+        while (head != tail.get()) {
+            slots.set((int) head & mask, 0);
+            head = head + 1;
+        }
+    }
+
+    /**
+     * Number of messages added since the queue was created. Together with
+     * getDelivered() it tells whether anything went through the queue.
+     */
+    public long getReceived() {
+        return tail.get();
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public int getDepth() {
+        return (int) (tail.get() - head);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Average cycles between an interrupt being raised and taken.
+     */
+    public double getAverageLatency() {
+        long count = delivered;
+        return count == 0 ? 0 : (double) totalLatency / count;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public void resetMetrics() {
+        overflows.set(0);
+        dropped.set(0);
+        delivered = 0;
+        totalLatency = 0;
+        maxLatency = 0;
+        maxDepth = getDepth();
+    }
+}
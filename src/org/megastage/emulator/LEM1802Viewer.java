@@ -5,22 +5,46 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.Toolkit;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
 public class LEM1802Viewer {
+    private static final Color BACKGROUND = new Color(240, 240, 240);
+
     public LEMCanvas canvas = new LEMCanvas();
     public VirtualMonitor vm;
-    BufferedImage img2 = new BufferedImage(144, 112, 2);
-    BufferedImage img = new BufferedImage(128, 112, 2);
-    int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    int[] pixels = new int[12289];
     protected boolean keepAlive = true;
 
+    // The scaled 144x112 frame, reused until the canvas size changes
+    private BufferedImage frame;
+    private int[] framePixels;
+    private int frameScale;
+
+    private FrameListener listener;
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+    /**
+     * Receives frame timing and GC counts after every displayed frame.
+     */
+    public interface FrameListener {
+        /**
+         * Called on the render thread.
+         *
+         * @param nanos    time spent producing and showing the frame
+         * @param gcCount  collections so far, summed over all collectors
+         * @param gcMillis time spent in those collections
+         */
+        void frameRendered(long nanos, long gcCount, long gcMillis);
+    }
+
     public LEM1802Viewer() {
         canvas.setPreferredSize(new Dimension(144, 112));
         canvas.setMinimumSize(new Dimension(144, 112));
@@ -47,6 +71,44 @@ public class LEM1802Viewer {
         return null;
     }
 
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Copies the monitor pixels and border into the frame, each pixel as a
+     * scale x scale block.
+     */
+    private void blit(int scale) {
+        int border = pixels[12288];
+        int width = 144 * scale;
+        for (int y = 0; y < 112; y++) {
+            int row = y * scale * width;
+            boolean inScreen = y >= 8 && y < 104;
+            for (int x = 0; x < 144; x++) {
+                int color = inScreen && x >= 8 && x < 136 ? pixels[x - 8 + (y - 8) * 128] : border;
+                int o = row + x * scale;
+                for (int i = 0; i < scale; i++) {
+                    framePixels[o + i] = color;
+                }
+            }
+            for (int i = 1; i < scale; i++) {
+                System.arraycopy(framePixels, row, framePixels, row + i * width, width);
+            }
+        }
+    }
+
+    private void notifyListener(long nanos) {
+        long count = 0;
+        long millis = 0;
+        for (int i = 0; i < collectors.size(); i++) {
+            GarbageCollectorMXBean gc = collectors.get(i);
+            count += Math.max(gc.getCollectionCount(), 0);
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        listener.frameRendered(nanos, count, millis);
+    }
+
     public void die() {
         keepAlive = false;
         canvas.stop();
@@ -55,6 +117,7 @@ public class LEM1802Viewer {
     public class LEMCanvas extends Canvas {
         private static final long serialVersionUID = 1L;
         private BufferStrategy strategy;
+        private Color marginColor;
         private TimerTask renderTask;
         private Timer timer = new Timer();
 
@@ -65,48 +128,43 @@ public class LEM1802Viewer {
         public synchronized void render() {
             try {
                 if (isDisplayable()) {
-                    // clear background
+                    long start = System.nanoTime();
+
                     Graphics2D bkG = (Graphics2D) strategy.getDrawGraphics();
-                    bkG.setColor(new Color(240, 240, 240));
-                    bkG.fillRect(0, 0, getWidth(), getHeight());
+                    int width = getWidth();
+                    int height = getHeight();
 
                     if (vm != null) {
                         vm.setPixels(pixels);
-                        for (int i = 0; i < 1000; i++) {
-                            vm.render();
-                        }
-                        int iScale = (getWidth() - 1) / 144 + 1;
-                        iScale = (getHeight() - 1) / 112 + 1 < iScale ? (getHeight() - 1) / 112 + 1 : iScale;
-                        iScale = iScale > 0 ? iScale : 1;
-                        img2 = new BufferedImage(144 * iScale, 112 * iScale, 2);
-                        Graphics2D g = (Graphics2D) img2.getGraphics();
-                        if (g != null) {
-                            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-                            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-                            g.setColor(new Color(pixels[0x3000]));
-                            g.fillRect(0, 0, 144 * iScale, 112 * iScale);
-                            g.drawImage(img, 8 * iScale, 8 * iScale, 128 * iScale, 112 * iScale, null);
-                            g.dispose();
+                        boolean changed = vm.render();
+
+                        int scale = Math.max(1, Math.min(width / 144, height / 112));
+                        if (frame == null || scale != frameScale) {
+                            frame = new BufferedImage(144 * scale, 112 * scale, BufferedImage.TYPE_INT_RGB);
+                            framePixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+                            frameScale = scale;
+                            changed = true;
                         }
-                        if (bkG != null) {
-                            bkG.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                            bkG.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-                            float scale;
-                            if ((float) getWidth() / (float) getHeight() > 144f / 112f) {
-                                scale = (float) getHeight() / 112f;
-                            } else {
-                                scale = (float) getWidth() / 144f;
-                            }
-                            int w = (int) (144 * scale);
-                            int h = (int) (112 * scale);
-                            bkG.drawImage(img2, (getWidth() - w) / 2, (getHeight() - h) / 2, w, h, null);
+                        if (changed) {
+                            blit(scale);
                         }
+                        int x = (width - 144 * scale) / 2;
+                        int y = (height - 112 * scale) / 2;
+                        clearMargins(bkG, x, y, 144 * scale, 112 * scale, pixels[12288]);
+                        bkG.drawImage(frame, x, y, null);
+                    } else {
+                        bkG.setColor(BACKGROUND);
+                        bkG.fillRect(0, 0, width, height);
                     }
                     bkG.dispose();
                     if (!keepAlive) {
                         return;
                     }
                     strategy.show();
+
+                    if (listener != null) {
+                        notifyListener(System.nanoTime() - start);
+                    }
                 }
                 Toolkit.getDefaultToolkit().sync();
             } catch (IllegalStateException e) {
@@ -137,6 +195,25 @@ public class LEM1802Viewer {
             renderTask.cancel();
         }
 
+        /**
+         * Fills the canvas around the w x h frame at x, y with the border
+         * colour, so that the monitor reaches the edges of the canvas at any
+         * size even though the frame is only scaled by whole numbers.
+         */
+        private void clearMargins(Graphics2D g, int x, int y, int w, int h, int border) {
+            if (marginColor == null || marginColor.getRGB() != (border | 0xFF000000)) {
+                marginColor = new Color(border);
+            }
+            g.setColor(marginColor);
+            int width = getWidth();
+            int height = getHeight();
+            // Strips of no or negative size draw nothing
+            g.fillRect(0, 0, width, y);
+            g.fillRect(0, y + h, width, height - y - h);
+            g.fillRect(0, y, x, h);
+            g.fillRect(x + w, y, width - x - w, h);
+        }
+
         @Override
         public void paint(Graphics g) {
             render();
@@ -0,0 +1,167 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A floppy whose image stays in its file. The file is memory-mapped as a
+ * CharBuffer (big-endian unless another byte order is given), so inserting
+ * the disk reads nothing up front and a sector transfer touches only the
+ * 512 words involved.
+ *
+ * Written sectors go straight into the shared mapping, so the file shows
+ * them at once. They are counted until flush() forces the mapping to
+ * storage. The first write after a flush schedules one on a background
+ * thread a second later, so written sectors become durable while the
+ * machine runs without the CPU thread waiting for the disk. Ejecting or
+ * closing the disk flushes too.
+ * A write-protected disk is mapped read-only and an image shorter than a full
+ * disk reads as zeros past its end. A writable image is extended to full size.
+ */
+public class MappedFloppyDisk extends FloppyDisk {
+    private static final int SECTORS = FloppyDisk.WORDS_PER_DISK / VirtualFloppyDrive.WORDS_PER_SECTOR;
+    private static final long FLUSH_DELAY_MS = 1000L;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "floppy-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final CharBuffer words;
+    private final BitSet dirty = new BitSet(SECTORS);
+    private boolean flushScheduled;
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    public MappedFloppyDisk(File image, boolean writeProtected) throws IOException {
+        this(image, writeProtected, ByteOrder.BIG_ENDIAN);
+    }
+
+    public MappedFloppyDisk(File image, boolean writeProtected, ByteOrder order) throws IOException {
+        setWriteProtected(writeProtected);
+        file = new RandomAccessFile(image, writeProtected ? "r" : "rw");
+        FileChannel channel = file.getChannel();
+        long bytes = FloppyDisk.WORDS_PER_DISK * 2L;
+        if (writeProtected) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), bytes));
+        } else {
+            if (file.length() < bytes) {
+                file.setLength(bytes);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+        words = buffer.order(order).asCharBuffer();
+    }
+
+    @Override
+    public void setWriteProtected(boolean writeProtected) {
+        if (!writeProtected && words != null && words.isReadOnly()) {
+            throw new IllegalStateException("Disk was mapped read-only");
+        }
+        super.setWriteProtected(writeProtected);
+    }
+
+    /**
+     * Takes no lock, so a write-protected disk can be the shared base of the
+     * OverlayFloppyDisks of many machines running on different threads.
+     */
+    @Override
+    public void readSector(int sector, char[] dst, int offset, int length) {
+        int start = sector * VirtualFloppyDrive.WORDS_PER_SECTOR;
+        int available = Math.max(0, Math.min(length, words.limit() - start));
+        if (available > 0) {
+            CharBuffer view = words.duplicate();
+            view.position(start);
+            view.get(dst, offset, available);
+        }
+        for (int i = available; i < length; i++) {
+            dst[offset + i] = 0;
+        }
+    }
+
+    @Override
+    public synchronized void writeSector(int sector, char[] src, int offset, int length) {
+        CharBuffer view = words.duplicate();
+        view.position(sector * VirtualFloppyDrive.WORDS_PER_SECTOR);
+        view.put(src, offset, length);
+        dirty.set(sector);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.schedule(scheduledFlush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Number of sectors written since the mapping was last forced.
+     */
+    public synchronized int getDirtySectors() {
+        return dirty.cardinality();
+    }
+
+    /**
+     * Forces the written sectors to storage. The lock is not held meanwhile,
+     * so the CPU thread can keep writing.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            flushScheduled = false;
+            if (dirty.isEmpty()) return;
+            dirty.clear();
+        }
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void save(File target) throws IOException {
+        ByteBuffer image = buffer.duplicate();
+        image.rewind();
+        FileOutputStream fos = new FileOutputStream(target);
+        try {
+            FileChannel out = fos.getChannel();
+            while (image.hasRemaining()) {
+                out.write(image);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Override
+    public void ejected() {
+        super.ejected();
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
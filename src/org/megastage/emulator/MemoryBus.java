@@ -0,0 +1,162 @@
+package org.megastage.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write tracking for DCPU.ram.
+ *
+ * RAM stays a plain char[] that the interpreter indexes directly; this class
+ * only records that words were written. Every 256-word page has a generation
+ * counter that is bumped on each write to it, so a consumer can remember the
+ * generation of a range and later tell whether it needs to look at the range
+ * again. Watchers get a callback for writes inside the range they registered.
+ *
+ * Writes are reported through DCPU.store() and DCPU.written(), which also
+ * drop cached code for the written words.
+ */
+public class MemoryBus {
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGES = 0x10000 >> PAGE_BITS;
+
+    private final int[] generations = new int[PAGES];
+    private final int[] watchedPages = new int[PAGES];
+    private final List<Watch> watches = new ArrayList<Watch>();
+    private long generation;
+
+    public interface Watcher {
+        /**
+         * Called on the CPU thread after words in the watched range were
+         * written. addr and length cover the written words inside the range.
+         */
+        void written(int addr, int length);
+    }
+
+    private static class Watch {
+        final int addr;
+        final int length;
+        final Watcher watcher;
+
+        Watch(int addr, int length, Watcher watcher) {
+            this.addr = addr;
+            this.length = length;
+            this.watcher = watcher;
+        }
+    }
+
+    /**
+     * Generation of the page holding addr.
+     */
+    public int getPageGeneration(int addr) {
+        return generations[(addr & 0xFFFF) >> PAGE_BITS];
+    }
+
+    /**
+     * A value that changes whenever a word in the range (or in a page it
+     * shares) is written. The range may wrap around the end of RAM.
+     */
+    public long getGeneration(int addr, int length) {
+        if (length >= 0x10000) return generation;
+        long sum = 0;
+        int first = (addr & 0xFFFF) >> PAGE_BITS;
+        int pages = ((addr & PAGE_SIZE - 1) + length + PAGE_SIZE - 1) >> PAGE_BITS;
+        for (int i = 0; i < pages; i++) {
+            sum += generations[first + i & PAGES - 1];
+        }
+        return sum;
+    }
+
+    /**
+     * Total number of writes seen anywhere in RAM.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void addWatcher(int addr, int length, Watcher watcher) {
+        Watch watch = new Watch(addr & 0xFFFF, Math.min(length, 0x10000), watcher);
+        synchronized (watches) {
+            watches.add(watch);
+            markPages(watch, 1);
+        }
+    }
+
+    public void removeWatcher(Watcher watcher) {
+        synchronized (watches) {
+            for (int i = watches.size() - 1; i >= 0; i--) {
+                Watch watch = watches.get(i);
+                if (watch.watcher == watcher) {
+                    watches.remove(i);
+                    markPages(watch, -1);
+                }
+            }
+        }
+    }
+
+    private void markPages(Watch watch, int delta) {
+        int first = watch.addr >> PAGE_BITS;
+        int pages = ((watch.addr & PAGE_SIZE - 1) + watch.length + PAGE_SIZE - 1) >> PAGE_BITS;
+        for (int i = 0; i < Math.min(pages, PAGES); i++) {
+            watchedPages[first + i & PAGES - 1] += delta;
+        }
+    }
+
+    /**
+     * Records a write to one word.
+     */
+    void written(int addr) {
+        int page = addr >> PAGE_BITS;
+        generations[page]++;
+        generation++;
+        if (watchedPages[page] != 0) {
+            notify(addr, 1);
+        }
+    }
+
+    /**
+     * Records a write to a range of words, which may wrap around the end of RAM.
+     */
+    void written(int addr, int length) {
+        addr &= 0xFFFF;
+        length = Math.min(length, 0x10000);
+        int first = addr >> PAGE_BITS;
+        int pages = ((addr & PAGE_SIZE - 1) + length + PAGE_SIZE - 1) >> PAGE_BITS;
+        boolean watched = false;
+        for (int i = 0; i < Math.min(pages, PAGES); i++) {
+            int page = first + i & PAGES - 1;
+            generations[page]++;
+            watched |= watchedPages[page] != 0;
+        }
+        generation += length;
+
+        if (watched) {
+            if (addr + length > 0x10000) {
+                notify(addr, 0x10000 - addr);
+                notify(0, addr + length - 0x10000);
+            } else {
+                notify(addr, length);
+            }
+        }
+    }
+
+    private void notify(int addr, int length) {
+        synchronized (watches) {
+            for (int i = 0; i < watches.size(); i++) {
+                Watch watch = watches.get(i);
+                notify(watch, addr, length, watch.addr, Math.min(watch.length, 0x10000 - watch.addr));
+                if (watch.addr + watch.length > 0x10000) {
+                    notify(watch, addr, length, 0, watch.addr + watch.length - 0x10000);
+                }
+            }
+        }
+    }
+
+    private static void notify(Watch watch, int addr, int length, int from, int count) {
+        int start = Math.max(addr, from);
+        int end = Math.min(addr + length, from + count);
+        if (start < end) {
+            watch.watcher.written(start, end - start);
+        }
+    }
+}
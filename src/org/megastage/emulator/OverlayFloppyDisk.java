@@ -0,0 +1,133 @@
+package org.megastage.emulator;
+
+import java.io.*;
+
+/**
+ * A copy-on-write floppy layered over a shared base disk.
+ *
+ * Many machines can boot from one base image: each gets its own
+ * OverlayFloppyDisk that holds only the sectors it has written, and every
+ * other sector is read from the base. The base is never written, so it can
+ * be any FloppyDisk (for example a MappedFloppyDisk) shared between threads.
+ *
+ * The overlay can be exported as a diff that lists only the written
+ * sectors, and such a diff can be applied to a fresh overlay later.
+ */
+public class OverlayFloppyDisk extends FloppyDisk {
+    private static final int SECTORS = FloppyDisk.WORDS_PER_DISK / VirtualFloppyDrive.WORDS_PER_SECTOR;
+    private static final int DIFF_MAGIC = 0x44434446; // "DCDF"
+
+    private final FloppyDisk base;
+    private final char[][] sectors = new char[SECTORS][];
+    private int changed;
+
+    public OverlayFloppyDisk(FloppyDisk base) {
+        this.base = base;
+    }
+
+    public FloppyDisk getBase() {
+        return base;
+    }
+
+    @Override
+    public synchronized void readSector(int sector, char[] dst, int offset, int length) {
+        char[] own = sectors[sector];
+        if (own != null) {
+            System.arraycopy(own, 0, dst, offset, length);
+        } else {
+            base.readSector(sector, dst, offset, length);
+        }
+    }
+
+    @Override
+    public synchronized void writeSector(int sector, char[] src, int offset, int length) {
+        char[] own = sectors[sector];
+        if (own == null) {
+            own = new char[VirtualFloppyDrive.WORDS_PER_SECTOR];
+            if (length < own.length) {
+                base.readSector(sector, own, 0, own.length);
+            }
+            sectors[sector] = own;
+            changed++;
+        }
+        System.arraycopy(src, offset, own, 0, length);
+    }
+
+    /**
+     * Number of sectors that have their own copy in the overlay.
+     */
+    public synchronized int getChangedSectors() {
+        return changed;
+    }
+
+    /**
+     * Drops every written sector, so the disk reads as its base again.
+     */
+    public synchronized void revert() {
+        for (int i = 0; i < SECTORS; i++) {
+            sectors[i] = null;
+        }
+        changed = 0;
+    }
+
+    /**
+     * Writes the full image, base and overlay merged.
+     */
+    @Override
+    public synchronized void save(File file) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            char[] sector = new char[VirtualFloppyDrive.WORDS_PER_SECTOR];
+            for (int i = 0; i < SECTORS; i++) {
+                readSector(i, sector, 0, sector.length);
+                for (int j = 0; j < sector.length; j++) {
+                    dos.writeChar(sector[j]);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Writes the overlay as a diff: a magic word, the number of sectors, and
+     * then each written sector as its index followed by its 512 words.
+     */
+    public synchronized void saveDiff(OutputStream os) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+        dos.writeInt(DIFF_MAGIC);
+        dos.writeShort(changed);
+        for (int i = 0; i < SECTORS; i++) {
+            char[] own = sectors[i];
+            if (own != null) {
+                dos.writeShort(i);
+                for (int j = 0; j < own.length; j++) {
+                    dos.writeChar(own[j]);
+                }
+            }
+        }
+        dos.flush();
+    }
+
+    /**
+     * Applies a diff written by saveDiff() on top of the current overlay.
+     */
+    public synchronized void loadDiff(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+        if (dis.readInt() != DIFF_MAGIC) {
+            throw new IOException("Not a floppy diff");
+        }
+        int count = dis.readUnsignedShort();
+        char[] sector = new char[VirtualFloppyDrive.WORDS_PER_SECTOR];
+        for (int i = 0; i < count; i++) {
+            int index = dis.readUnsignedShort();
+            if (index >= SECTORS) {
+                throw new IOException("Bad sector in floppy diff: " + index);
+            }
+            for (int j = 0; j < sector.length; j++) {
+                sector[j] = dis.readChar();
+            }
+            writeSector(index, sector, 0, sector.length);
+        }
+    }
+}
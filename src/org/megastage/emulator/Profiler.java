@@ -0,0 +1,289 @@
+package org.megastage.emulator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Counts what a guest program spends its cycles on: instructions and cycles
+ * per address and per opcode, cycles per JSR call path, and HWI calls per
+ * device. Attach it with DCPU.setProfiler().
+ *
+ * Cycles are attributed when the next instruction starts, so an instruction
+ * is charged for its own cycles and for the instructions it skips. Calls are
+ * tracked on a shadow stack: a frame is entered on JSR or when an interrupt
+ * is taken, and left once SP has moved above the return address the call
+ * pushed, which covers SET PC, POP as well as RFI and code that resets SP.
+ *
+ * writeFlat() writes the tables as text, writeCollapsed() writes one line
+ * per call path with its cycles, the collapsed stack format that
+ * flamegraph.pl and similar tools read.
+ */
+public class Profiler {
+    private static final String[] BASIC = {
+            null, "SET", "ADD", "SUB", "MUL", "MLI", "DIV", "DVI",
+            "MOD", "MDI", "AND", "BOR", "XOR", "SHR", "ASR", "SHL",
+            "IFB", "IFC", "IFE", "IFN", "IFG", "IFA", "IFL", "IFU",
+            null, null, "ADX", "SBX", null, null, "STI", "STD"};
+    private static final String[] SPECIAL = {
+            null, "JSR", null, null, null, null, null, "HCF",
+            "INT", "IAG", "IAS", "RFI", "IAQ", null, null, null,
+            "HWN", "HWQ", "HWI", null, null, null, null, null,
+            null, null, null, null, null, null, null, null};
+    // Deeper calls are charged to the deepest frame, which keeps the tree
+    // bounded for code that uses JSR as a jump
+    private static final int MAX_DEPTH = 256;
+
+    private final DCPU dcpu;
+    private final long[] pcInstructions = new long[65536];
+    private final long[] pcCycles = new long[65536];
+    // Basic opcodes at 0..31, special opcodes at 32..63
+    private final long[] opInstructions = new long[64];
+    private final long[] opCycles = new long[64];
+    private long[] hwiCalls = new long[0];
+
+    private final Frame root = new Frame(null, -1, false, 0);
+    private Frame frame = root;
+
+    private long lastTime = -1;
+    private int lastPc;
+    private int lastOp;
+    private Frame lastFrame = root;
+
+    private static class Frame {
+        final Frame parent;
+        final int target;
+        final boolean isInterrupt;
+        final int depth;
+        final int level;
+        final Map<Integer, Frame> children = new HashMap<Integer, Frame>();
+        long calls;
+        long cycles;
+
+        Frame(Frame parent, int target, boolean isInterrupt, int depth) {
+            this.parent = parent;
+            this.target = target;
+            this.isInterrupt = isInterrupt;
+            this.depth = depth;
+            this.level = parent == null ? 0 : parent.level + 1;
+        }
+
+        String getName() {
+            if (parent == null) return "start";
+            return String.format(isInterrupt ? "int@%04x" : "%04x", target);
+        }
+    }
+
+    public Profiler(DCPU dcpu) {
+        this.dcpu = dcpu;
+    }
+
+    /**
+     * Called by the CPU as the instruction at pc starts.
+     */
+    void instruction(int pc, int opcode) {
+        long now = dcpu.getTime() - 1;
+        charge(now);
+
+        int depth = depth(dcpu.sp);
+        while (frame != root && depth < frame.depth) {
+            frame = frame.parent;
+        }
+
+        pcInstructions[pc]++;
+        int cmd = opcode & 0x1F;
+        int op = cmd == 0 ? 32 + (opcode >> 5 & 0x1F) : cmd;
+        opInstructions[op]++;
+
+        lastTime = now;
+        lastPc = pc;
+        lastOp = op;
+        lastFrame = frame;
+    }
+
+    /**
+     * Called by the CPU after it has pushed the return address of a JSR, or
+     * the return address and A of an interrupt, and jumped to target.
+     */
+    void call(int target, boolean isInterrupt) {
+        if (frame.level >= MAX_DEPTH) return;
+        int key = isInterrupt ? target | 0x10000 : target;
+        Frame child = frame.children.get(key);
+        if (child == null) {
+            child = new Frame(frame, target, isInterrupt, depth(dcpu.sp));
+            frame.children.put(key, child);
+        }
+        child.calls++;
+        frame = child;
+    }
+
+    /**
+     * Called by the CPU for HWI on an attached device.
+     */
+    void hardwareInterrupt(int device) {
+        if (device >= hwiCalls.length) {
+            hwiCalls = Arrays.copyOf(hwiCalls, device + 1);
+        }
+        hwiCalls[device]++;
+    }
+
+    /**
+     * Drops everything counted so far.
+     */
+    public void reset() {
+        Arrays.fill(pcInstructions, 0);
+        Arrays.fill(pcCycles, 0);
+        Arrays.fill(opInstructions, 0);
+        Arrays.fill(opCycles, 0);
+        hwiCalls = new long[0];
+        root.children.clear();
+        root.cycles = 0;
+        frame = root;
+        lastFrame = root;
+        lastTime = -1;
+    }
+
+    public long getInstructions(int pc) {
+        return pcInstructions[pc];
+    }
+
+    public long getCycles(int pc) {
+        flush();
+        return pcCycles[pc];
+    }
+
+    public long getHardwareInterrupts(int device) {
+        return device < hwiCalls.length ? hwiCalls[device] : 0;
+    }
+
+    /**
+     * Writes the per-opcode, per-address, per-call-target and per-device
+     * tables. Addresses are limited to the top entries by cycles.
+     */
+    public void writeFlat(Writer writer, int top) throws IOException {
+        flush();
+        PrintWriter out = new PrintWriter(writer);
+        long total = 0;
+        long instructions = 0;
+        for (int op = 0; op < 64; op++) {
+            total += opCycles[op];
+            instructions += opInstructions[op];
+        }
+        out.println(String.format("%d instructions, %d cycles", instructions, total));
+
+        out.println();
+        out.println("opcode   instructions       cycles      %");
+        for (Integer op : sortByCycles(opCycles, 64)) {
+            String name = op < 32 ? BASIC[op] : SPECIAL[op - 32];
+            out.println(String.format("%-6s %14d %12d %6.2f", name != null ? name : "op" + Integer.toHexString(op),
+                    opInstructions[op], opCycles[op], percent(opCycles[op], total)));
+        }
+
+        out.println();
+        out.println("address  instructions       cycles      %");
+        List<Integer> pcs = sortByCycles(pcCycles, 65536);
+        for (Integer pc : pcs.subList(0, Math.min(top, pcs.size()))) {
+            out.println(String.format("%04x   %14d %12d %6.2f", pc, pcInstructions[pc], pcCycles[pc], percent(pcCycles[pc], total)));
+        }
+
+        out.println();
+        out.println("target        calls         self        total      %");
+        Map<String, long[]> targets = new TreeMap<String, long[]>();
+        addTargets(root, targets, new HashSet<String>());
+        for (Map.Entry<String, long[]> e : targets.entrySet()) {
+            long[] t = e.getValue();
+            out.println(String.format("%-8s %10d %12d %12d %6.2f", e.getKey(), t[0], t[1], t[2], percent(t[2], total)));
+        }
+
+        out.println();
+        out.println("device                     hwi");
+        DCPUHardware[] devices = dcpu.getDevices();
+        for (int i = 0; i < hwiCalls.length; i++) {
+            String name = i < devices.length ? devices[i].getClass().getSimpleName() : "?";
+            out.println(String.format("%2d %-20s %8d", i, name, hwiCalls[i]));
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes one "start;caller;callee cycles" line per call path.
+     */
+    public void writeCollapsed(Writer writer) throws IOException {
+        flush();
+        PrintWriter out = new PrintWriter(writer);
+        writeCollapsed(out, root, root.getName());
+        out.flush();
+    }
+
+    private void writeCollapsed(PrintWriter out, Frame frame, String path) {
+        if (frame.cycles > 0) {
+            out.println(path + " " + frame.cycles);
+        }
+        for (Frame child : frame.children.values()) {
+            writeCollapsed(out, child, path + ";" + child.getName());
+        }
+    }
+
+    /*
+     * Sums calls, self and total cycles per target over the whole tree. A
+     * target that is on the path more than once, as in recursion, adds its
+     * total only at the outermost frame.
+     */
+    private long addTargets(Frame frame, Map<String, long[]> targets, Set<String> onPath) {
+        long total = frame.cycles;
+        String name = frame.getName();
+        boolean outermost = onPath.add(name);
+        for (Frame child : frame.children.values()) {
+            total += addTargets(child, targets, onPath);
+        }
+        if (outermost) onPath.remove(name);
+
+        long[] t = targets.get(name);
+        if (t == null) {
+            t = new long[3];
+            targets.put(name, t);
+        }
+        t[0] += frame.calls;
+        t[1] += frame.cycles;
+        if (outermost) t[2] += total;
+        return total;
+    }
+
+    private void flush() {
+        charge(dcpu.getTime());
+    }
+
+    private void charge(long now) {
+        if (lastTime < 0) return;
+        long spent = now - lastTime;
+        // Time goes back when a snapshot is restored
+        if (spent < 0) spent = 0;
+        pcCycles[lastPc] += spent;
+        opCycles[lastOp] += spent;
+        lastFrame.cycles += spent;
+        lastTime = now;
+    }
+
+    private static int depth(char sp) {
+        return -sp & 0xFFFF;
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+
+    private static List<Integer> sortByCycles(final long[] cycles, int length) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < length; i++) {
+            if (cycles[i] > 0) keys.add(i);
+        }
+        Collections.sort(keys, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return cycles[b] < cycles[a] ? -1 : cycles[b] > cycles[a] ? 1 : a - b;
+            }
+        });
+        return keys;
+    }
+}
@@ -0,0 +1,198 @@
+package org.megastage.emulator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A ring of checkpoints of one machine for stepping back in time.
+ *
+ * Only the first checkpoint holds all of RAM. Every later one stores the
+ * CPU state and just the RAM pages written since the checkpoint before it,
+ * as told by the MemoryBus page generations, plus the device state of each
+ * device whose state changed. When the checkpoints outgrow the memory
+ * budget the oldest delta is folded into the full copy, so the ring always
+ * covers the most recent history that fits.
+ *
+ * Seeking to a checkpoint copies each RAM page at most once: the newest copy
+ * of the page at or before the checkpoint, or the full copy if no delta has
+ * it. Checkpoints after the one sought are dropped, since the machine goes
+ * on from there.
+ *
+ * Use it on the thread that runs the machine, between frames. RAM writes
+ * that bypass DCPU.store() and DCPU.written() are not seen.
+ */
+public class RewindBuffer {
+    private static final int PAGE_WORDS = MemoryBus.PAGE_SIZE;
+    private static final int BASE_BYTES = 65536 * 2;
+    private static final int STATE_BYTES = 1024;
+
+    private final DCPU dcpu;
+    private final long budget;
+    private final int[] generations = new int[MemoryBus.PAGES];
+    private final ArrayDeque<Checkpoint> deltas = new ArrayDeque<Checkpoint>();
+
+    private final char[] baseRam = new char[65536];
+    private Snapshot baseState;
+    private long baseId;
+    private long nextId;
+    private long used;
+
+    private static class Checkpoint {
+        final long id;
+        final Snapshot state;
+        final int[] pages;
+        final char[][] data;
+        final long bytes;
+
+        Checkpoint(long id, Snapshot state, int[] pages, char[][] data, long bytes) {
+            this.id = id;
+            this.state = state;
+            this.pages = pages;
+            this.data = data;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Takes the first checkpoint right away. budget is the number of bytes
+     * the checkpoints may use, including the full RAM copy.
+     */
+    public RewindBuffer(DCPU dcpu, long budget) {
+        this.dcpu = dcpu;
+        this.budget = budget;
+        reset();
+    }
+
+    /**
+     * Drops all checkpoints and takes a new first one.
+     */
+    public void reset() {
+        deltas.clear();
+        System.arraycopy(dcpu.ram, 0, baseRam, 0, baseRam.length);
+        baseState = Snapshot.take(dcpu, false);
+        baseId = nextId++;
+        used = BASE_BYTES + STATE_BYTES;
+        markGenerations();
+    }
+
+    /**
+     * Records the current state and returns its id. Ids increase by one per
+     * checkpoint.
+     */
+    public long checkpoint() {
+        int count = 0;
+        int[] changed = new int[MemoryBus.PAGES];
+        for (int page = 0; page < MemoryBus.PAGES; page++) {
+            if (dcpu.memory.getPageGeneration(page << MemoryBus.PAGE_BITS) != generations[page]) {
+                changed[count++] = page;
+            }
+        }
+        int[] pages = Arrays.copyOf(changed, count);
+        char[][] data = new char[count][];
+        for (int i = 0; i < count; i++) {
+            data[i] = Arrays.copyOfRange(dcpu.ram, pages[i] << MemoryBus.PAGE_BITS, (pages[i] + 1) << MemoryBus.PAGE_BITS);
+        }
+        markGenerations();
+
+        Snapshot state = Snapshot.take(dcpu, false);
+        Snapshot previous = deltas.isEmpty() ? baseState : deltas.peekLast().state;
+        long bytes = (long) count * PAGE_WORDS * 2 + STATE_BYTES;
+        for (int i = 0; i < state.devices.length; i++) {
+            if (i < previous.devices.length && Arrays.equals(state.devices[i], previous.devices[i])) {
+                state.devices[i] = previous.devices[i];
+            } else {
+                bytes += state.devices[i].length;
+            }
+        }
+
+        Checkpoint checkpoint = new Checkpoint(nextId++, state, pages, data, bytes);
+        deltas.addLast(checkpoint);
+        used += bytes;
+        while (used > budget && deltas.size() > 1) {
+            fold();
+        }
+        return checkpoint.id;
+    }
+
+    /**
+     * Puts the machine back to checkpoint id and forgets every later one.
+     */
+    public void seek(long id) {
+        if (id < baseId || id > getNewest()) {
+            throw new IllegalArgumentException("No checkpoint " + id);
+        }
+
+        boolean[] done = new boolean[MemoryBus.PAGES];
+        Snapshot state = baseState;
+        Iterator<Checkpoint> it = deltas.descendingIterator();
+        while (it.hasNext()) {
+            Checkpoint checkpoint = it.next();
+            if (checkpoint.id > id) {
+                used -= checkpoint.bytes;
+                it.remove();
+                continue;
+            }
+            if (state == baseState) {
+                state = checkpoint.state;
+            }
+            for (int i = 0; i < checkpoint.pages.length; i++) {
+                int page = checkpoint.pages[i];
+                if (!done[page]) {
+                    System.arraycopy(checkpoint.data[i], 0, dcpu.ram, page << MemoryBus.PAGE_BITS, PAGE_WORDS);
+                    done[page] = true;
+                }
+            }
+        }
+        for (int page = 0; page < MemoryBus.PAGES; page++) {
+            if (!done[page]) {
+                System.arraycopy(baseRam, page << MemoryBus.PAGE_BITS, dcpu.ram, page << MemoryBus.PAGE_BITS, PAGE_WORDS);
+            }
+        }
+
+        state.restore(dcpu);
+        markGenerations();
+        nextId = id + 1;
+    }
+
+    /**
+     * Steps back count checkpoints from the newest, or to the oldest if there
+     * are not that many. Returns the id restored.
+     */
+    public long back(int count) {
+        long id = Math.max(baseId, getNewest() - count);
+        seek(id);
+        return id;
+    }
+
+    public long getOldest() {
+        return baseId;
+    }
+
+    public long getNewest() {
+        return deltas.isEmpty() ? baseId : deltas.peekLast().id;
+    }
+
+    /**
+     * Approximate number of bytes held by the checkpoints.
+     */
+    public long getMemoryUsed() {
+        return used;
+    }
+
+    private void fold() {
+        Checkpoint oldest = deltas.removeFirst();
+        for (int i = 0; i < oldest.pages.length; i++) {
+            System.arraycopy(oldest.data[i], 0, baseRam, oldest.pages[i] << MemoryBus.PAGE_BITS, PAGE_WORDS);
+        }
+        baseState = oldest.state;
+        baseId = oldest.id;
+        used -= oldest.bytes;
+    }
+
+    private void markGenerations() {
+        for (int page = 0; page < MemoryBus.PAGES; page++) {
+            generations[page] = dcpu.memory.getPageGeneration(page << MemoryBus.PAGE_BITS);
+        }
+    }
+}
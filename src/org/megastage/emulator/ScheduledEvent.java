@@ -0,0 +1,31 @@
+package org.megastage.emulator;
+
+/**
+ * A callback that DCPU runs on the CPU thread once its cycle comes, see
+ * DCPU.schedule(). Events due at the same cycle run in the order they were
+ * scheduled.
+ */
+public final class ScheduledEvent implements Comparable<ScheduledEvent> {
+    final long time;
+    final long sequence;
+    final Runnable task;
+
+    ScheduledEvent(long time, long sequence, Runnable task) {
+        this.time = time;
+        this.sequence = sequence;
+        this.task = task;
+    }
+
+    /**
+     * The cycle, in DCPU.getTime() terms, at which the event runs.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public int compareTo(ScheduledEvent o) {
+        if (time != o.time) return time < o.time ? -1 : 1;
+        return sequence < o.sequence ? -1 : sequence > o.sequence ? 1 : 0;
+    }
+}
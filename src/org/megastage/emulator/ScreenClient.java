@@ -0,0 +1,157 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A viewer for ScreenServer: keeps a copy of one machine's screen up to date
+ * from the server's messages and sends keys back.
+ *
+ * Usage: ScreenClient host port name
+ *
+ * As a program it prints the screen text after every update and types each
+ * line read from stdin, followed by return.
+ */
+public class ScreenClient {
+    public final char[] cells = new char[384];
+    public final char[] font = new char[256];
+    public final int[] palette = new int[16];
+    public int border;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Inflater inflater = new Inflater();
+    private long messages;
+
+    public ScreenClient(String host, int port, String name) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.write((name + "\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * Waits for the next message and applies it. Returns false when the
+     * server closed the connection.
+     */
+    public boolean update() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        byte type = in.readByte();
+        int inflatedLength = in.readInt();
+        byte[] compressed = new byte[length - 5];
+        in.readFully(compressed);
+        if (type != ScreenServer.KEYFRAME && type != ScreenServer.DELTA) {
+            throw new IOException("Unknown message " + type);
+        }
+
+        byte[] payload = new byte[inflatedLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            if (inflater.inflate(payload) != inflatedLength) {
+                throw new IOException("Bad message length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        int flags = data.readByte();
+        if ((flags & ScreenServer.PALETTE) != 0) {
+            for (int i = 0; i < 16; i++) palette[i] = data.readInt();
+        }
+        if ((flags & ScreenServer.FONT) != 0) {
+            for (int i = 0; i < 256; i++) font[i] = data.readChar();
+        }
+        if ((flags & ScreenServer.BORDER) != 0) {
+            border = data.readByte();
+        }
+        int start;
+        while ((start = data.readShort()) >= 0) {
+            int count = data.readShort();
+            for (int i = start; i < start + count; i++) {
+                cells[i] = data.readChar();
+            }
+        }
+        messages++;
+        return true;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public ScreenText getScreenText() {
+        return new ScreenText(cells.clone(), messages);
+    }
+
+    public void keyPressed(int keyCode, char keyChar) throws IOException {
+        sendKey('P', keyCode, keyChar);
+    }
+
+    public void keyReleased(int keyCode, char keyChar) throws IOException {
+        sendKey('R', keyCode, keyChar);
+    }
+
+    /**
+     * Presses and releases the key for c, as HeadlessEmulator.type() does.
+     */
+    public void type(char c) throws IOException {
+        int keyCode = c == '\n' ? 10 : Character.toUpperCase(c);
+        keyPressed(keyCode, c);
+        keyReleased(keyCode, c);
+    }
+
+    private void sendKey(char type, int keyCode, char keyChar) throws IOException {
+        synchronized (out) {
+            out.writeByte(type);
+            out.writeByte(0);
+            out.writeShort(keyCode);
+            out.writeChar(keyChar);
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        socket.close();
+        inflater.end();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ScreenClient client = new ScreenClient(args[0], Integer.parseInt(args[1]), args[2]);
+        Thread input = new Thread("keys") {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        for (char c : (line + "\n").toCharArray()) {
+                            client.type(c);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        input.setDaemon(true);
+        input.start();
+
+        while (client.update()) {
+            System.out.println(client.getScreenText());
+            System.out.println();
+        }
+        client.close();
+    }
+}
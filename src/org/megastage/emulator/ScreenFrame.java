@@ -0,0 +1,27 @@
+package org.megastage.emulator;
+
+/**
+ * What an LEM1802 showed at the end of one frame: copies of its screen,
+ * font and palette memory, taken on the CPU thread. VirtualMonitor hands
+ * these to the render thread, so the renderer never reads RAM that the CPU
+ * is writing.
+ */
+public class ScreenFrame {
+    /** 32x12 cells, row by row. All 0 while the monitor is disconnected. */
+    public final char[] screen = new char[384];
+    /** Two words per glyph, 128 glyphs. */
+    public final char[] font = new char[256];
+    /** The 16 colours as ARGB. */
+    public final int[] palette = new int[16];
+    public int border;
+    /** True while no screen memory is mapped. */
+    public boolean blank = true;
+    public int screenMemMap;
+    /** MemoryBus generation of the screen memory when it was copied. */
+    public long screenGeneration = -1;
+    /** Counts up by one per published frame. */
+    public long sequence;
+    // Counts power cycles and restores, after which the whole screen is redrawn
+    int resets;
+
+}
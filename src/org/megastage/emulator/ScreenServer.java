@@ -0,0 +1,515 @@
+package org.megastage.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Streams the LEM1802 screens of many machines to remote viewers and types
+ * the keys they send, all on one thread with a NIO selector.
+ *
+ * A viewer connects over TCP and sends the name of a machine followed by a
+ * newline. From then on the server sends messages, each an int length, a
+ * type byte, the int length of the payload once inflated, and the payload
+ * compressed with zlib. A keyframe ('F') holds the whole screen, a delta
+ * ('D') only what changed since the message before it. Both payloads are
+ * a flags byte (1 palette, 2 font, 4 border) followed by 16 ARGB ints of
+ * palette, 256 font words and a border byte as flagged, and then runs of
+ * screen words: a short start cell, a short count and the words, ended by
+ * a start of -1. Messages are sent at most 30 times a second, and only when
+ * something on the screen changed.
+ *
+ * The viewer sends keys as 6 byte messages: 'P' or 'R' for press and
+ * release, a reserved byte, the short AWT key code and the key char.
+ *
+ * A viewer that cannot keep up is not sent deltas it would queue behind;
+ * once it has caught up it gets a keyframe instead. The server takes the
+ * frames of each monitor through VirtualMonitor.getFrame(), so the same
+ * monitor must not also be drawn with render().
+ */
+public class ScreenServer {
+    static final byte KEYFRAME = 'F';
+    static final byte DELTA = 'D';
+    static final int PALETTE = 1;
+    static final int FONT = 2;
+    static final int BORDER = 4;
+
+    private static final long NS_PER_UPDATE = 33333333L;
+    private static final int MAX_BACKLOG = 256 * 1024;
+    private static final int MAX_NAME = 256;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Map<String, Screen> screens = new ConcurrentHashMap<String, Screen>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] deflated = new byte[4096];
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile long messages;
+    private volatile long bytes;
+
+    /**
+     * One served machine and the screen its viewers were last sent.
+     */
+    private static class Screen {
+        final VirtualMonitor monitor;
+        final VirtualKeyboard keyboard;
+        final List<Session> sessions = new ArrayList<Session>();
+        final char[] cells = new char[384];
+        final char[] font = new char[256];
+        final int[] palette = new int[16];
+        int border = -1;
+        long sequence = -1;
+        ByteBuffer keyframe;
+        volatile boolean removed;
+
+        Screen(VirtualMonitor monitor, VirtualKeyboard keyboard) {
+            this.monitor = monitor;
+            this.keyboard = keyboard;
+        }
+    }
+
+    private static class Session {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(512);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        int backlog;
+        Screen screen;
+        boolean synced;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Binds to address. Use port 0 for any free port.
+     */
+    public ScreenServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serves a machine under name. Safe to call while the server runs.
+     */
+    public void add(String name, VirtualMonitor monitor, VirtualKeyboard keyboard) {
+        screens.put(name, new Screen(monitor, keyboard));
+    }
+
+    /**
+     * Stops serving a machine. Its viewers are disconnected on the next update.
+     */
+    public void remove(String name) {
+        Screen screen = screens.remove(name);
+        if (screen != null) screen.removed = true;
+    }
+
+    /**
+     * Messages and bytes sent to all viewers so far.
+     */
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread("ScreenServer") {
+            @Override
+            public void run() {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            if (thread != null) thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        deflater.end();
+    }
+
+    private void serve() throws IOException {
+        long next = System.nanoTime();
+        while (running) {
+            long wait = (next - System.nanoTime()) / 1000000L;
+            if (wait > 0) {
+                selector.select(wait);
+            } else {
+                selector.selectNow();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    }
+                } catch (IOException e) {
+                    if (key.channel() == server) {
+                        e.printStackTrace();
+                    } else {
+                        close(key);
+                    }
+                }
+            }
+
+            if (System.nanoTime() - next >= 0) {
+                next += NS_PER_UPDATE;
+                if (System.nanoTime() - next > NS_PER_UPDATE) {
+                    next = System.nanoTime();
+                }
+                update();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        if (session.channel.read(session.in) < 0) {
+            close(key);
+            return;
+        }
+        ByteBuffer in = session.in;
+        in.flip();
+        if (session.screen == null) {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    byte[] name = new byte[i - in.position()];
+                    in.get(name);
+                    in.get();
+                    Screen screen = screens.get(new String(name, "UTF-8").trim());
+                    if (screen == null) {
+                        close(key);
+                        return;
+                    }
+                    session.screen = screen;
+                    screen.sessions.add(session);
+                    break;
+                }
+            }
+            if (session.screen == null && in.limit() > MAX_NAME) {
+                close(key);
+                return;
+            }
+        }
+        if (session.screen != null) {
+            while (in.remaining() >= 6) {
+                byte type = in.get();
+                in.get();
+                int keyCode = in.getShort() & 0xFFFF;
+                char keyChar = in.getChar();
+                if (type == 'P') {
+                    session.screen.keyboard.postKeyPressed(keyCode, keyChar);
+                } else if (type == 'R') {
+                    session.screen.keyboard.postKeyReleased(keyCode, keyChar);
+                }
+            }
+        }
+        in.compact();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        while (!session.out.isEmpty()) {
+            ByteBuffer buffer = session.out.peek();
+            int written = session.channel.write(buffer);
+            session.backlog -= written;
+            bytes += written;
+            if (buffer.hasRemaining()) break;
+            session.out.poll();
+        }
+        key.interestOps(session.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void close(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        if (session != null && session.screen != null) {
+            session.screen.sessions.remove(session);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    /**
+     * Sends every watched screen's changes to its viewers.
+     */
+    private void update() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Session) || !key.isValid()) continue;
+            Session session = (Session) key.attachment();
+            Screen screen = session.screen;
+            if (screen != null && screen.removed) {
+                close(key);
+            }
+        }
+
+        for (Screen screen : screens.values()) {
+            if (screen.sessions.isEmpty()) continue;
+
+            ByteBuffer delta = diff(screen);
+            for (Session session : screen.sessions) {
+                if (session.synced) {
+                    if (delta == null) continue;
+                    if (session.backlog > MAX_BACKLOG) {
+                        // Drop the deltas and send a keyframe once the viewer caught up
+                        session.synced = false;
+                        continue;
+                    }
+                    send(session, delta.duplicate());
+                } else if (session.out.isEmpty()) {
+                    if (screen.keyframe == null) {
+                        screen.keyframe = keyframe(screen);
+                    }
+                    send(session, screen.keyframe.duplicate());
+                    session.synced = true;
+                }
+            }
+        }
+    }
+
+    private void send(Session session, ByteBuffer message) {
+        session.out.add(message);
+        session.backlog += message.remaining();
+        messages++;
+        SelectionKey key = session.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Brings the screen up to the monitor's newest frame and returns the
+     * delta message, or null if nothing changed.
+     */
+    private ByteBuffer diff(Screen screen) throws IOException {
+        ScreenFrame frame = screen.monitor.getFrame();
+        if (frame.sequence == screen.sequence) return null;
+        screen.sequence = frame.sequence;
+
+        int flags = 0;
+        if (!Arrays.equals(frame.palette, screen.palette)) {
+            System.arraycopy(frame.palette, 0, screen.palette, 0, 16);
+            flags |= PALETTE;
+        }
+        if (!Arrays.equals(frame.font, screen.font)) {
+            System.arraycopy(frame.font, 0, screen.font, 0, 256);
+            flags |= FONT;
+        }
+        if (frame.border != screen.border) {
+            screen.border = frame.border;
+            flags |= BORDER;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, screen, flags);
+        boolean changed = flags != 0;
+        int i = 0;
+        while (i < 384) {
+            if (cell(frame, i) == screen.cells[i]) {
+                i++;
+                continue;
+            }
+            // A run goes on over gaps of up to two unchanged cells, which cost
+            // less than the four bytes of a new run
+            int end = i + 1;
+            for (int j = end; j < 384 && j < end + 3; j++) {
+                if (cell(frame, j) != screen.cells[j]) end = j + 1;
+            }
+            out.writeShort(i);
+            out.writeShort(end - i);
+            for (; i < end; i++) {
+                screen.cells[i] = cell(frame, i);
+                out.writeChar(screen.cells[i]);
+            }
+            changed = true;
+        }
+        out.writeShort(-1);
+
+        if (!changed) return null;
+        screen.keyframe = null;
+        return message(DELTA, bytes.toByteArray());
+    }
+
+    private ByteBuffer keyframe(Screen screen) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, screen, PALETTE | FONT | BORDER);
+        out.writeShort(0);
+        out.writeShort(384);
+        for (int i = 0; i < 384; i++) {
+            out.writeChar(screen.cells[i]);
+        }
+        out.writeShort(-1);
+        return message(KEYFRAME, bytes.toByteArray());
+    }
+
+    private static void writeHeader(DataOutputStream out, Screen screen, int flags) throws IOException {
+        out.writeByte(flags);
+        if ((flags & PALETTE) != 0) {
+            for (int i = 0; i < 16; i++) out.writeInt(screen.palette[i]);
+        }
+        if ((flags & FONT) != 0) {
+            for (int i = 0; i < 256; i++) out.writeChar(screen.font[i]);
+        }
+        if ((flags & BORDER) != 0) {
+            out.writeByte(Math.max(screen.border, 0));
+        }
+    }
+
+    // Blank screens are sent as cells of 0, which show as palette colour 0
+    private static char cell(ScreenFrame frame, int i) {
+        return frame.blank ? 0 : frame.screen[i];
+    }
+
+    private ByteBuffer message(byte type, byte[] payload) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflated.length) {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        ByteBuffer message = ByteBuffer.allocate(9 + length);
+        message.putInt(5 + length);
+        message.put(type);
+        message.putInt(payload.length);
+        message.put(deflated, 0, length);
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Runs count machines on a DCPUHost and serves them as "0", "1" and so on.
+     * The floppy image is loaded once and each machine gets an
+     * OverlayFloppyDisk over it. With -map the image is memory-mapped read
+     * only instead of loaded into the heap.
+     * Prints how many machines failed, the speed of all machines together and
+     * how many sectors they have written to stderr every 10 seconds.
+     *
+     * Usage: ScreenServer [-port N] [-machines N] [-map] [bootrom [floppy]]
+     */
+    public static void main(String[] args) throws Exception {
+        int port = 1802;
+        int count = 1;
+        String rom = null;
+        String disk = null;
+        boolean map = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-machines")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-map")) {
+                map = true;
+            } else if (rom == null) {
+                rom = args[i];
+            } else {
+                disk = args[i];
+            }
+        }
+
+        // Every machine reads the same disk and keeps only the sectors it writes
+        FloppyDisk base;
+        if (disk != null && map) {
+            base = new MappedFloppyDisk(new File(disk), true);
+        } else {
+            base = new FloppyDisk(disk != null ? new FileInputStream(disk) : DCPU.class.getResourceAsStream("/floppy.bin"));
+            base.setWriteProtected(true);
+        }
+        List<OverlayFloppyDisk> overlays = new ArrayList<OverlayFloppyDisk>();
+
+        ScreenServer server = new ScreenServer(new InetSocketAddress(port));
+        DCPUHost host = new DCPUHost();
+        for (int i = 0; i < count; i++) {
+            DCPU dcpu = new DCPU();
+            dcpu.setRecompiling(Boolean.getBoolean("dcpu.recompile"));
+            dcpu.load(rom != null ? new FileInputStream(rom) : DCPU.class.getResourceAsStream("/admiral.bin"));
+            new VirtualClock().connectTo(dcpu);
+            VirtualKeyboard keyboard = new VirtualKeyboard();
+            keyboard.connectTo(dcpu);
+            VirtualFloppyDrive floppy = new VirtualFloppyDrive();
+            floppy.connectTo(dcpu);
+            OverlayFloppyDisk overlay = new OverlayFloppyDisk(base);
+            overlays.add(overlay);
+            floppy.insert(overlay);
+            VirtualMonitor monitor = new VirtualMonitor();
+            monitor.connectTo(dcpu);
+            server.add(String.valueOf(i), monitor, keyboard);
+            host.add(dcpu);
+        }
+        host.start();
+        server.start();
+        System.out.println("Serving " + count + " machines on port " + server.getPort());
+        while (true) {
+            Thread.sleep(10000L);
+            double mhz = 0;
+            int failed = 0;
+            for (DCPUHost.Guest guest : host.getGuests()) {
+                mhz += guest.dcpu.getMHz();
+                if (guest.isFailed()) failed++;
+            }
+            int sectors = 0;
+            for (OverlayFloppyDisk overlay : overlays) {
+                sectors += overlay.getChangedSectors();
+            }
+            System.err.println(String.format("%d machines, %d failed, %.2f MHz in total, %d sectors written", count, failed, mhz, sectors));
+        }
+    }
+}
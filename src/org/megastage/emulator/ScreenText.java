@@ -0,0 +1,90 @@
+package org.megastage.emulator;
+
+/**
+ * The text on an LEM1802 at one moment: the 32x12 screen words, read
+ * straight from the mapped screen memory without drawing any pixels.
+ *
+ * Each word holds the character in bits 0-6, the blink flag in bit 7, the
+ * background colour in bits 8-11 and the foreground colour in bits 12-15.
+ * Characters outside printable ASCII read as spaces in the text methods.
+ */
+public class ScreenText {
+    public static final int COLUMNS = 32;
+    public static final int ROWS = 12;
+
+    private final char[] cells;
+    private final long changes;
+    private String text;
+
+    ScreenText(char[] cells, long changes) {
+        this.cells = cells;
+        this.changes = changes;
+    }
+
+    /**
+     * VirtualMonitor.getTextChanges() at the time the text was read.
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    public char getCell(int column, int row) {
+        return cells[column + row * COLUMNS];
+    }
+
+    public char getChar(int column, int row) {
+        return toChar(getCell(column, row));
+    }
+
+    public int getForeground(int column, int row) {
+        return getCell(column, row) >> 12 & 0xF;
+    }
+
+    public int getBackground(int column, int row) {
+        return getCell(column, row) >> 8 & 0xF;
+    }
+
+    public boolean isBlinking(int column, int row) {
+        return (getCell(column, row) & 0x80) != 0;
+    }
+
+    public String getLine(int row) {
+        StringBuilder line = new StringBuilder(COLUMNS);
+        for (int column = 0; column < COLUMNS; column++) {
+            line.append(getChar(column, row));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Whether text appears on the screen. Rows are joined by newlines, so
+     * text only spans rows if it contains them.
+     */
+    public boolean contains(String text) {
+        return toString().contains(text);
+    }
+
+    /**
+     * The 12 rows joined by newlines, with trailing spaces kept.
+     */
+    @Override
+    public String toString() {
+        if (text == null) {
+            StringBuilder sb = new StringBuilder((COLUMNS + 1) * ROWS);
+            for (int row = 0; row < ROWS; row++) {
+                if (row > 0) sb.append('\n');
+                sb.append(getLine(row));
+            }
+            text = sb.toString();
+        }
+        return text;
+    }
+
+    /**
+     * The character of a screen word, or a space if it is not printable ASCII.
+     */
+    static char toChar(char cell) {
+        int c = cell & 0x7F;
+        return c >= 0x20 && c < 0x7F ? (char) c : ' ';
+    }
+}
@@ -0,0 +1,207 @@
+package org.megastage.emulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The complete state of a machine at one point in time: registers, the
+ * waiting interrupts, the skip flag, the cycle counter, RAM and the state of
+ * every connected device (see DCPUHardware.saveState()).
+ *
+ * A snapshot owns copies of everything, so one snapshot can be restored into
+ * any number of machines that have the same devices connected in the same
+ * order, for example to boot once and then clone sessions from it. Take and
+ * restore a snapshot on the thread that runs the machine, or while it is
+ * stopped; nothing is locked, so other machines keep running.
+ *
+ * Floppy contents are not included, only the drive state. Use
+ * OverlayFloppyDisk.saveDiff() for the disk.
+ *
+ * The binary form written by write() is versioned: a magic word and VERSION
+ * first, then the CPU, RAM and one length-prefixed block per device.
+ */
+public class Snapshot {
+    public static final int VERSION = 3;
+    private static final int MAGIC = 0x44435355; // "DCSU"
+
+    private static final int FLAG_SKIPPING = 1;
+    private static final int FLAG_QUEUEING = 2;
+    private static final int FLAG_ON_FIRE = 4;
+
+    char[] ram;
+    final char[] registers = new char[8];
+    char[] interrupts;
+    char pc;
+    char sp;
+    char ex;
+    char ia;
+    int cycles;
+    int flags;
+    int[] deviceTypes;
+    byte[][] devices;
+
+    private Snapshot() {
+    }
+
+    public static Snapshot take(DCPU dcpu) {
+        return take(dcpu, true);
+    }
+
+    /**
+     * Without RAM the snapshot holds only the CPU and device state, for
+     * RewindBuffer which keeps RAM itself.
+     */
+    static Snapshot take(DCPU dcpu, boolean withRam) {
+        Snapshot s = new Snapshot();
+        if (withRam) {
+            s.ram = dcpu.ram.clone();
+        }
+        System.arraycopy(dcpu.registers, 0, s.registers, 0, s.registers.length);
+        s.interrupts = dcpu.interrupts.toArray();
+        s.pc = dcpu.pc;
+        s.sp = dcpu.sp;
+        s.ex = dcpu.ex;
+        s.ia = dcpu.ia;
+        s.cycles = dcpu.cycles;
+        s.flags = (dcpu.isSkipping ? FLAG_SKIPPING : 0)
+                | (dcpu.queueingEnabled ? FLAG_QUEUEING : 0)
+                | (dcpu.isOnFire ? FLAG_ON_FIRE : 0);
+
+        DCPUHardware[] hardware = dcpu.getDevices();
+        s.deviceTypes = new int[hardware.length];
+        s.devices = new byte[hardware.length][];
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int i = 0; i < hardware.length; i++) {
+                bytes.reset();
+                DataOutputStream out = new DataOutputStream(bytes);
+                hardware[i].saveState(out);
+                out.flush();
+                s.deviceTypes[i] = hardware[i].getType();
+                s.devices[i] = bytes.toByteArray();
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return s;
+    }
+
+    /**
+     * Puts the machine into the saved state. Throws IllegalStateException if
+     * its devices do not match the ones the snapshot was taken with. A
+     * snapshot taken without RAM leaves RAM as it is.
+     */
+    public void restore(DCPU dcpu) {
+        DCPUHardware[] hardware = dcpu.getDevices();
+        if (hardware.length != devices.length) {
+            throw new IllegalStateException("Snapshot has " + devices.length + " devices, machine has " + hardware.length);
+        }
+        for (int i = 0; i < devices.length; i++) {
+            if (hardware[i].getType() != deviceTypes[i]) {
+                throw new IllegalStateException("Device " + i + " is not of type 0x" + Integer.toHexString(deviceTypes[i]));
+            }
+        }
+
+        if (ram != null) {
+            System.arraycopy(ram, 0, dcpu.ram, 0, ram.length);
+        }
+        System.arraycopy(registers, 0, dcpu.registers, 0, registers.length);
+        dcpu.pc = pc;
+        dcpu.sp = sp;
+        dcpu.ex = ex;
+        dcpu.ia = ia;
+        dcpu.cycles = cycles;
+        dcpu.isSkipping = (flags & FLAG_SKIPPING) != 0;
+        dcpu.queueingEnabled = (flags & FLAG_QUEUEING) != 0;
+        dcpu.isOnFire = (flags & FLAG_ON_FIRE) != 0;
+        dcpu.written(0, dcpu.ram.length);
+        dcpu.interrupts.clear();
+        for (int i = 0; i < interrupts.length; i++) {
+            dcpu.interrupts.offer(interrupts[i], dcpu.getTime());
+        }
+
+        try {
+            for (int i = 0; i < devices.length; i++) {
+                hardware[i].loadState(new DataInputStream(new ByteArrayInputStream(devices[i])));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt device state", e);
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        if (ram == null) {
+            throw new IllegalStateException("Snapshot was taken without RAM");
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeChar(pc);
+        out.writeChar(sp);
+        out.writeChar(ex);
+        out.writeChar(ia);
+        for (int i = 0; i < registers.length; i++) {
+            out.writeChar(registers[i]);
+        }
+        out.writeInt(cycles);
+        out.writeByte(flags);
+        out.writeShort(interrupts.length);
+        out.write(toBytes(interrupts));
+        out.write(toBytes(ram));
+        out.writeShort(devices.length);
+        for (int i = 0; i < devices.length; i++) {
+            out.writeInt(deviceTypes[i]);
+            out.writeInt(devices[i].length);
+            out.write(devices[i]);
+        }
+        out.flush();
+    }
+
+    public static Snapshot read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        Snapshot s = new Snapshot();
+        s.ram = new char[65536];
+        s.pc = in.readChar();
+        s.sp = in.readChar();
+        s.ex = in.readChar();
+        s.ia = in.readChar();
+        for (int i = 0; i < s.registers.length; i++) {
+            s.registers[i] = in.readChar();
+        }
+        s.cycles = in.readInt();
+        s.flags = in.readUnsignedByte();
+        s.interrupts = new char[in.readUnsignedShort()];
+        readChars(in, s.interrupts);
+        readChars(in, s.ram);
+        int count = in.readUnsignedShort();
+        s.deviceTypes = new int[count];
+        s.devices = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            s.deviceTypes[i] = in.readInt();
+            s.devices[i] = new byte[in.readInt()];
+            in.readFully(s.devices[i]);
+        }
+        return s;
+    }
+
+    private static byte[] toBytes(char[] words) {
+        ByteBuffer bytes = ByteBuffer.allocate(words.length * 2);
+        bytes.asCharBuffer().put(words);
+        return bytes.array();
+    }
+
+    private static void readChars(DataInputStream in, char[] words) throws IOException {
+        byte[] bytes = new byte[words.length * 2];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asCharBuffer().get(words);
+    }
+}
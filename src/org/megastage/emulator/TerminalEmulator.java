@@ -0,0 +1,322 @@
+package org.megastage.emulator;
+
+import java.io.*;
+
+/**
+ * Console front-end: shows the LEM1802 screen in an ANSI terminal and types
+ * the keys read from stdin, for machines on remote nodes without a display.
+ * Never loads AWT.
+ *
+ * Usage: TerminalEmulator [bootrom [floppy]]
+ *
+ * Only the cells that changed since the last update are sent, each with
+ * the cursor moves and colour changes it needs, so an idle screen costs
+ * nothing. Colours are mapped to the nearest of the 16 ANSI colours, or sent
+ * as 24-bit colours when COLORTERM says the terminal has them or
+ * -Dterm.truecolor=true is set. Characters are shown by their code, not by
+ * their glyph, so custom fonts are not seen. The speed the machine runs at
+ * is shown below the screen. Ctrl-C quits.
+ *
+ * The terminal is put into raw mode with stty while running. Takes the same
+ * dcpu.* properties as DesktopEmulator.
+ */
+public class TerminalEmulator {
+    private static final String ESC = "\u001b[";
+    private static final long NS_PER_UPDATE = 33333333L;
+
+    // The 16 ANSI colours in their VGA shades, which the default LEM palette uses
+    private static final int[] ANSI_RGB = {
+            0x000000, 0xaa0000, 0x00aa00, 0xaa5500, 0x0000aa, 0xaa00aa, 0x00aaaa, 0xaaaaaa,
+            0x555555, 0xff5555, 0x55ff55, 0xffff55, 0x5555ff, 0xff55ff, 0x55ffff, 0xffffff
+    };
+
+    private final VirtualMonitor monitor;
+    private final VirtualKeyboard keyboard;
+    private final OutputStream out;
+    private final boolean trueColor;
+
+    // What the terminal shows now
+    private final char[] shown = new char[384];
+    private final String[] foregrounds = new String[16];
+    private final String[] backgrounds = new String[16];
+    private boolean full = true;
+    private int border = -1;
+    private int cursor = -1;
+    private int attributes = -1;
+    private long sequence;
+    private String status = "";
+    private volatile double mhz = -1;
+
+    public TerminalEmulator(VirtualMonitor monitor, VirtualKeyboard keyboard, OutputStream out, boolean trueColor) {
+        this.monitor = monitor;
+        this.keyboard = keyboard;
+        this.out = out;
+        this.trueColor = trueColor;
+    }
+
+    /**
+     * Sends what changed on the screen since the last call. Call from one
+     * thread only.
+     */
+    public void update() throws IOException {
+        ScreenFrame frame = monitor.getFrame();
+        double mhz = this.mhz;
+        String speed = mhz < 0 ? "" : String.format("%.2f MHz", mhz);
+        if (frame.sequence == sequence && !full && speed.equals(status)) return;
+        sequence = frame.sequence;
+
+        StringBuilder sb = new StringBuilder();
+        if (updateColors(frame.palette)) {
+            full = true;
+        }
+        if (full) {
+            sb.append(ESC).append("0m").append(ESC).append("2J");
+            attributes = -1;
+            cursor = -1;
+            border = -1;
+        }
+        if (frame.border != border) {
+            border = frame.border;
+            drawBorder(sb);
+        }
+        for (int i = 0; i < 384; i++) {
+            char cell = frame.blank ? 0 : frame.screen[i];
+            if (cell == shown[i] && !full) continue;
+            shown[i] = cell;
+            if (cursor != i) {
+                moveTo(sb, (i >> 5) + 2, (i & 31) + 2);
+            }
+            setAttributes(sb, cell >> 7);
+            sb.append(ScreenText.toChar(cell));
+            // The cursor stays on the row after the last column
+            cursor = (i & 31) == 31 ? -1 : i + 1;
+        }
+        if (full || !speed.equals(status)) {
+            status = speed;
+            moveTo(sb, 15, 1);
+            sb.append(ESC).append("0m").append(status).append(ESC).append('K');
+            attributes = -1;
+            cursor = -1;
+        }
+        full = false;
+
+        if (sb.length() > 0) {
+            out.write(sb.toString().getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+
+    /**
+     * Sets the speed shown below the screen on the next update(). Safe to
+     * call from any thread, for example from a DCPU.SpeedListener.
+     */
+    public void showSpeed(double mhz) {
+        this.mhz = mhz;
+    }
+
+    /**
+     * Makes the next update() send the whole screen.
+     */
+    public void redraw() {
+        full = true;
+    }
+
+    /**
+     * Types the keys in the bytes read from the terminal: printable ASCII,
+     * return, backspace, and the arrow, insert and delete escape sequences.
+     * Returns false on Ctrl-C.
+     */
+    public boolean type(InputStream in) throws IOException {
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == 3) return false;
+            if (c == 27) {
+                if (in.read() != '[') continue;
+                int code = in.read();
+                if (code == '2' || code == '3') {
+                    in.read(); // '~'
+                    press(code == '2' ? 155 : 127, (char) 0);
+                } else if (code >= 'A' && code <= 'D') {
+                    press(new int[]{38, 40, 39, 37}[code - 'A'], (char) 0);
+                }
+            } else if (c == '\r' || c == '\n') {
+                press(10, '\n');
+            } else if (c == 8 || c == 127) {
+                press(8, '\b');
+            } else if (c >= 0x20 && c < 0x7F) {
+                press(Character.toUpperCase(c), (char) c);
+            }
+        }
+        return true;
+    }
+
+    private void press(int keyCode, char keyChar) {
+        keyboard.postKeyPressed(keyCode, keyChar);
+        keyboard.postKeyReleased(keyCode, keyChar);
+    }
+
+    /**
+     * Maps the palette to SGR parameters. Returns true if any changed.
+     */
+    private boolean updateColors(int[] palette) {
+        boolean changed = false;
+        for (int i = 0; i < 16; i++) {
+            int rgb = palette[i] & 0xFFFFFF;
+            String fg;
+            String bg;
+            if (trueColor) {
+                String color = (rgb >> 16) + ";" + (rgb >> 8 & 0xFF) + ";" + (rgb & 0xFF);
+                fg = "38;2;" + color;
+                bg = "48;2;" + color;
+            } else {
+                int ansi = nearest(rgb);
+                fg = String.valueOf(ansi < 8 ? 30 + ansi : 82 + ansi);
+                bg = String.valueOf(ansi < 8 ? 40 + ansi : 92 + ansi);
+            }
+            if (!fg.equals(foregrounds[i])) {
+                foregrounds[i] = fg;
+                backgrounds[i] = bg;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static int nearest(int rgb) {
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            int dr = (rgb >> 16) - (ANSI_RGB[i] >> 16);
+            int dg = (rgb >> 8 & 0xFF) - (ANSI_RGB[i] >> 8 & 0xFF);
+            int db = (rgb & 0xFF) - (ANSI_RGB[i] & 0xFF);
+            long distance = 3L * dr * dr + 4L * dg * dg + 2L * db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * attrs is a screen word shifted right by 7: the blink bit, then the
+     * background and the foreground.
+     */
+    private void setAttributes(StringBuilder sb, int attrs) {
+        if (attrs == attributes) return;
+        attributes = attrs;
+        sb.append(ESC).append((attrs & 0x1) != 0 ? "0;5;" : "0;")
+                .append(foregrounds[attrs >> 5 & 0xF]).append(';')
+                .append(backgrounds[attrs >> 1 & 0xF]).append('m');
+    }
+
+    private void moveTo(StringBuilder sb, int row, int column) {
+        sb.append(ESC).append(row).append(';').append(column).append('H');
+    }
+
+    private void drawBorder(StringBuilder sb) {
+        sb.append(ESC).append("0;").append(backgrounds[border]).append('m');
+        attributes = -1;
+        for (int row = 1; row <= 14; row++) {
+            moveTo(sb, row, 1);
+            if (row == 1 || row == 14) {
+                for (int i = 0; i < 34; i++) sb.append(' ');
+            } else {
+                sb.append(' ');
+                moveTo(sb, row, 34);
+                sb.append(' ');
+            }
+        }
+        cursor = -1;
+    }
+
+    private static String stty(String args) {
+        try {
+            Process p = new ProcessBuilder("sh", "-c", "stty " + args + " < /dev/tty").redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String line = reader.readLine();
+            return p.waitFor() == 0 ? (line != null ? line.trim() : "") : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        DCPU dcpu = new DCPU();
+        dcpu.setRecompiling(Boolean.getBoolean("dcpu.recompile"));
+        dcpu.setIdleSkipping(!"false".equals(System.getProperty("dcpu.idle")));
+        dcpu.getInterruptQueue().setOverflow(InterruptQueue.Overflow.valueOf(System.getProperty("dcpu.overflow", "fire").toUpperCase()));
+        String speed = System.getProperty("dcpu.speed", "1");
+        dcpu.setSpeed(speed.equals("turbo") ? 0 : Double.parseDouble(speed));
+
+        if (args.length > 0) {
+            dcpu.load(new FileInputStream(args[0]));
+        } else {
+            dcpu.load(DCPU.class.getResourceAsStream("/admiral.bin"));
+        }
+
+        new VirtualClock().connectTo(dcpu);
+        VirtualKeyboard keyboard = new VirtualKeyboard();
+        keyboard.connectTo(dcpu);
+        VirtualFloppyDrive floppy = new VirtualFloppyDrive();
+        floppy.connectTo(dcpu);
+        if (args.length > 1) {
+            floppy.insert(new FloppyDisk(new FileInputStream(args[1])));
+        } else {
+            floppy.insert(new FloppyDisk(DCPU.class.getResourceAsStream("/floppy.bin")));
+        }
+        VirtualMonitor monitor = new VirtualMonitor();
+        monitor.connectTo(dcpu);
+
+        String colorTerm = System.getenv("COLORTERM");
+        boolean trueColor = System.getProperty("term.truecolor") != null
+                ? Boolean.getBoolean("term.truecolor")
+                : "truecolor".equals(colorTerm) || "24bit".equals(colorTerm);
+
+        final PrintStream out = System.out;
+        final TerminalEmulator terminal = new TerminalEmulator(monitor, keyboard, out, trueColor);
+        dcpu.setSpeedListener(new DCPU.SpeedListener() {
+            @Override
+            public void speedMeasured(DCPU dcpu, double mhz) {
+                terminal.showSpeed(mhz);
+            }
+        });
+
+        final String saved = stty("-g");
+        if (saved != null) {
+            stty("raw -echo");
+        }
+        out.print(ESC + "?25l");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                out.print(ESC + "0m" + ESC + "16;1H" + ESC + "?25h\r\n");
+                out.flush();
+                if (saved != null) {
+                    stty(saved);
+                }
+            }
+        });
+
+        Thread input = new Thread("terminal input") {
+            @Override
+            public void run() {
+                try {
+                    if (!terminal.type(System.in)) {
+                        System.exit(0);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        input.setDaemon(true);
+        input.start();
+
+        dcpu.run();
+        while (true) {
+            terminal.update();
+            Thread.sleep(NS_PER_UPDATE / 1000000L);
+        }
+    }
+}
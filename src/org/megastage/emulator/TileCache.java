@@ -0,0 +1,161 @@
+package org.megastage.emulator;
+
+import java.util.Arrays;
+
+/**
+ * Cells drawn as 4x8 tiles of ready pixels, shared by every VirtualMonitor.
+ *
+ * A tile is keyed by the two glyph words and the 12-bit foreground and
+ * background colours, so monitors with different palettes can share it.
+ * Keys are kept in an open-addressed table and the pixels in one array
+ * allocated up front, so drawing a cell allocates nothing. When the cache is
+ * full a clock hand evicts a tile that was not drawn since the hand last
+ * passed it.
+ */
+final class TileCache {
+    private static final int TILE_WORDS = 32;
+    private static final long EMPTY = -1L; // keys use 56 bits
+
+    private final int capacity;
+    private final int[] pixels;
+    private final long[] tileKeys;
+    private final boolean[] used;
+    private int size;
+    private int hand;
+    private long misses;
+
+    // Open-addressed with linear probing, twice the capacity
+    private final int mask;
+    private final int shift;
+    private final long[] keys;
+    private final int[] tiles;
+
+    TileCache(int capacity) {
+        this.capacity = capacity;
+        pixels = new int[capacity * TILE_WORDS];
+        tileKeys = new long[capacity];
+        used = new boolean[capacity];
+
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity * 2 - 1);
+        mask = (1 << bits) - 1;
+        shift = 64 - bits;
+        keys = new long[1 << bits];
+        tiles = new int[1 << bits];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    static long key(char left, char right, int fg, int bg) {
+        return (long) left << 40 | (long) right << 24 | fg << 12 | bg;
+    }
+
+    /**
+     * The 12-bit colour of an ARGB colour whose channels are multiples of 17,
+     * as all LEM1802 colours are.
+     */
+    static int color(int argb) {
+        return argb >> 12 & 0xF00 | argb >> 8 & 0xF0 | argb >> 4 & 0xF;
+    }
+
+    /**
+     * Copies the tile for key into dst at offset, a row every stride words.
+     */
+    synchronized void draw(long key, int[] dst, int offset, int stride) {
+        int tile = lookup(key);
+        int src = tile * TILE_WORDS;
+        for (int yy = 0; yy < 8; yy++) {
+            System.arraycopy(pixels, src + yy * 4, dst, offset + yy * stride, 4);
+        }
+    }
+
+    /**
+     * How many draws had to fill a tile.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    private int lookup(long key) {
+        int i = slot(key);
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) {
+                int tile = tiles[i];
+                used[tile] = true;
+                return tile;
+            }
+            i = i + 1 & mask;
+        }
+
+        misses++;
+        int tile;
+        if (size < capacity) {
+            tile = size++;
+        } else {
+            while (used[hand]) {
+                used[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
+            tile = hand;
+            hand = (hand + 1) % capacity;
+            remove(tileKeys[tile]);
+            // The removal may have shifted the empty slot found above
+            i = slot(key);
+            while (keys[i] != EMPTY) {
+                i = i + 1 & mask;
+            }
+        }
+        keys[i] = key;
+        tiles[i] = tile;
+        tileKeys[tile] = key;
+        used[tile] = true;
+        fill(tile, key);
+        return tile;
+    }
+
+    private void fill(int tile, long key) {
+        char left = (char) (key >>> 40);
+        char right = (char) (key >>> 24);
+        int fg = argb((int) key >> 12 & 0xFFF);
+        int bg = argb((int) key & 0xFFF);
+        int base = tile * TILE_WORDS;
+        for (int xx = 0; xx < 4; xx++) {
+            int bits = (xx < 2 ? left : right) >> (xx + 1 & 0x1) * 8 & 0xFF;
+            for (int yy = 0; yy < 8; yy++) {
+                pixels[base + xx + yy * 4] = (bits >> yy & 0x1) != 0 ? fg : bg;
+            }
+        }
+    }
+
+    private static int argb(int color) {
+        int b = (color >> 0 & 0xF) * 17;
+        int g = (color >> 4 & 0xF) * 17;
+        int r = (color >> 8 & 0xF) * 17;
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private int slot(long key) {
+        return (int) (key * 0x9E3779B97F4A7C15L >>> shift);
+    }
+
+    /**
+     * Removes key and moves the keys probed past it back, so that the table
+     * needs no tombstones.
+     */
+    private void remove(long key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            i = i + 1 & mask;
+        }
+        keys[i] = EMPTY;
+        for (int j = i + 1 & mask; keys[j] != EMPTY; j = j + 1 & mask) {
+            int home = slot(keys[j]);
+            // Move back unless the key's home lies cyclically in (i, j]
+            if ((j - home & mask) >= (j - i & mask)) {
+                keys[i] = keys[j];
+                tiles[i] = tiles[j];
+                keys[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+}
@@ -1,10 +1,33 @@
 package org.megastage.emulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Generic clock. Ticks are scheduled on the DCPU at exact cycles, interval/60
+ * seconds apart, counted from when the interval was set so that they do not
+ * drift.
+ */
 public class VirtualClock extends DCPUHardware {
+    private static final long CYCLES_PER_SECOND = DCPU.khz * 1000L;
+
     private int interval;
-    private int intCount;
     private char ticks;
     private char interruptMessage;
+    private long start;
+    private long count;
+    private ScheduledEvent next;
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            next = null;
+            count++;
+            if (interruptMessage != 0) dcpu.interrupt(interruptMessage);
+            ticks++;
+            scheduleNext();
+        }
+    };
 
     public VirtualClock() {
         super(315667458, 32776, 515079825);
@@ -12,28 +35,65 @@ public class VirtualClock extends DCPUHardware {
 
     public void interrupt() {
         int a = this.dcpu.registers[0];
-        if (a == 0)
+        if (a == 0) {
             this.interval = this.dcpu.registers[1];
-        else if (a == 1)
+            cancelTick();
+            start = dcpu.getTime();
+            count = 0;
+            if (interval != 0) scheduleNext();
+        } else if (a == 1)
             this.dcpu.registers[2] = this.ticks;
         else if (a == 2)
             this.interruptMessage = this.dcpu.registers[1];
     }
 
-    public void tick60hz() {
-        if (this.interval == 0) return;
-        if (++this.intCount >= this.interval) {
-            if (this.interruptMessage != 0) this.dcpu.interrupt(this.interruptMessage);
-            this.intCount = 0;
-            this.ticks++;
+    /**
+     * Setting the interval restarts the timer, everything else is idempotent.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return dcpu.registers[0] != 0;
+    }
+
+    private void cancelTick() {
+        if (next != null) {
+            if (dcpu != null) dcpu.cancel(next);
+            next = null;
         }
     }
 
+    private void scheduleNext() {
+        next = dcpu.schedule(start + (count + 1) * interval * CYCLES_PER_SECOND / 60, tick);
+    }
+
     @Override
     public void powerOff() {
-        this.intCount = 0;
         this.interruptMessage = 0;
         this.interval = 0;
         this.ticks = 0;
+        cancelTick();
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(interval);
+        out.writeChar(ticks);
+        out.writeChar(interruptMessage);
+        out.writeLong(next == null ? -1 : next.getTime() - dcpu.getTime());
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        interval = in.readInt();
+        ticks = in.readChar();
+        interruptMessage = in.readChar();
+        long remaining = in.readLong();
+        cancelTick();
+        if (remaining >= 0 && interval != 0) {
+            // Continue the saved tick train: the next tick is remaining cycles away
+            start = dcpu.getTime() + remaining - interval * CYCLES_PER_SECOND / 60;
+            count = 0;
+            scheduleNext();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,9 @@
 package org.megastage.emulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Experimental, untested implementation of the MF35D Floppy Drive
  *
@@ -12,7 +16,9 @@ package org.megastage.emulator;
  *         The M35FD works is asynchronous, and has a raw read/write speed of 30.7kw/s.
  *         Track seeking time is about 2.4 ms per track.
  *         <p/>
- *         TODO: Switch to coarser, 60hz time-keeping. Current time-keeping is a bit flawed.
+ *         Seek and transfer times are kept in CPU cycles: an operation completes
+ *         through an event scheduled on the DCPU at the exact cycle it is due.
+ *         <p/>
  *         TODO: Test this more.
  */
 public class VirtualFloppyDrive extends DCPUHardware {
@@ -47,7 +53,15 @@ public class VirtualFloppyDrive extends DCPUHardware {
     private char message;
     private int track;
     private FloppyDisk floppy;
-    private FloppyOperation operation = new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
+    private FloppyOperation operation = new FloppyOperation(FloppyOperation.NONE, 0, 0);
+    private ScheduledEvent completion;
+    private final Runnable complete = new Runnable() {
+        @Override
+        public void run() {
+            completion = null;
+            complete();
+        }
+    };
 
     public VirtualFloppyDrive() {
         super(0x4fd524c5, 0x000b, 0x1eb37e91);
@@ -70,9 +84,8 @@ public class VirtualFloppyDrive extends DCPUHardware {
         } else if (a == 2) {
             int sector = dcpu.registers[3];
             if (sector <= MAX_SECTOR && (state == STATE_READY || state == STATE_READY_WP)) {
-                operation = new FloppyOperation(FloppyOperation.READ, sector, dcpu.registers[4],
-                        dcpu.cycles + READ_CYCLES_PER_SECTOR + SEEK_CYCLES_PER_TRACK
-                                * Math.abs(track - (sector / SECTORS_PER_TRACK)));
+                operation = new FloppyOperation(FloppyOperation.READ, sector, dcpu.registers[4]);
+                start(READ_CYCLES_PER_SECTOR + SEEK_CYCLES_PER_TRACK * Math.abs(track - (sector / SECTORS_PER_TRACK)));
                 dcpu.registers[1] = 1;
                 setState(STATE_BUSY);
             } else {
@@ -88,9 +101,8 @@ public class VirtualFloppyDrive extends DCPUHardware {
         } else if (a == 3) {
             int sector = dcpu.registers[3];
             if (sector <= MAX_SECTOR && state == STATE_READY) {
-                operation = new FloppyOperation(FloppyOperation.WRITE, sector, dcpu.registers[4],
-                        dcpu.cycles + WRITE_CYCLES_PER_SECTOR + SEEK_CYCLES_PER_TRACK
-                                * Math.abs(track - (sector / SECTORS_PER_TRACK)));
+                operation = new FloppyOperation(FloppyOperation.WRITE, sector, dcpu.registers[4]);
+                start(WRITE_CYCLES_PER_SECTOR + SEEK_CYCLES_PER_TRACK * Math.abs(track - (sector / SECTORS_PER_TRACK)));
                 dcpu.registers[1] = 1;
                 setState(STATE_BUSY);
             } else {
@@ -108,6 +120,16 @@ public class VirtualFloppyDrive extends DCPUHardware {
         }
     }
 
+    /**
+     * Polling is idempotent unless it clears an error. Reads and writes
+     * start an operation each time.
+     */
+    @Override
+    public boolean isIdempotent() {
+        int a = dcpu.registers[0];
+        return a == 0 ? error == ERROR_NONE : a == 1;
+    }
+
     private void setState(char state) {
         setState(state, error);
     }
@@ -126,29 +148,41 @@ public class VirtualFloppyDrive extends DCPUHardware {
         }
     }
 
-    public void tick60hz() {
-        if ((operation.cycles -= 1667) <= 0) {
-            switch (operation.type) {
-                case FloppyOperation.READ:
-                    for (int i = 0; i < 512; i++) {
-                        if (operation.memory + i <= 65535) { //TODO
-                            dcpu.ram[operation.memory + i] = floppy.data[operation.sector * WORDS_PER_SECTOR + i];
-                        }
-                    }
-                    track = operation.sector / SECTORS_PER_TRACK;
-                    operation = new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
-                    setState(floppy.isWriteProtected() ? STATE_READY_WP : STATE_READY, ERROR_NONE);
-                    break;
-                case FloppyOperation.WRITE:
-                    for (int i = 0; i < 512; i++) {
-                        floppy.data[operation.sector * WORDS_PER_SECTOR + i] = dcpu.ram[operation.memory + i];
-                    }
-                    track = operation.sector / SECTORS_PER_TRACK;
-                    operation = new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
-                    setState(STATE_READY, ERROR_NONE);
-                    break;
-                case FloppyOperation.NONE:
-                    new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
+    /**
+     * Schedules completion of the current operation after the given number
+     * of cycles.
+     */
+    private void start(int cycles) {
+        dcpu.cancel(completion);
+        completion = dcpu.schedule(dcpu.getTime() + cycles, complete);
+    }
+
+    private void stop() {
+        if (completion != null) {
+            if (dcpu != null) dcpu.cancel(completion);
+            completion = null;
+        }
+        operation = new FloppyOperation(FloppyOperation.NONE, 0, 0);
+    }
+
+    private void complete() {
+        switch (operation.type) {
+            case FloppyOperation.READ: {
+                int count = Math.min(WORDS_PER_SECTOR, 65536 - operation.memory);
+                floppy.readSector(operation.sector, dcpu.ram, operation.memory, count);
+                dcpu.written(operation.memory, count);
+                track = operation.sector / SECTORS_PER_TRACK;
+                operation = new FloppyOperation(FloppyOperation.NONE, 0, 0);
+                setState(floppy.isWriteProtected() ? STATE_READY_WP : STATE_READY, ERROR_NONE);
+                break;
+            }
+            case FloppyOperation.WRITE: {
+                int count = Math.min(WORDS_PER_SECTOR, 65536 - operation.memory);
+                floppy.writeSector(operation.sector, dcpu.ram, operation.memory, count);
+                track = operation.sector / SECTORS_PER_TRACK;
+                operation = new FloppyOperation(FloppyOperation.NONE, 0, 0);
+                setState(STATE_READY, ERROR_NONE);
+                break;
             }
         }
     }
@@ -167,7 +201,7 @@ public class VirtualFloppyDrive extends DCPUHardware {
         FloppyDisk ejected = floppy;
         floppy = null;
         if (state == STATE_BUSY) {
-            operation = new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
+            stop();
             setState(STATE_NO_MEDIA, ERROR_EJECT);
         } else {
             setState(STATE_NO_MEDIA);
@@ -184,13 +218,11 @@ public class VirtualFloppyDrive extends DCPUHardware {
         private int type;
         private int sector;
         private int memory;
-        private int cycles;
 
-        public FloppyOperation(int type, int sector, int memory, int cycles) {
+        public FloppyOperation(int type, int sector, int memory) {
             this.type = type;
             this.sector = sector;
             this.memory = memory;
-            this.cycles = cycles;
         }
     }
 
@@ -205,7 +237,46 @@ public class VirtualFloppyDrive extends DCPUHardware {
         this.interruptsEnabled = false;
         this.message = 0;
         this.track = 0;
-        this.operation = new FloppyOperation(FloppyOperation.NONE, 0, 0, Integer.MAX_VALUE);
+        stop();
+    }
+
+    /**
+     * Saves the drive registers and the operation in flight with the cycles
+     * left until it completes. The disk itself is not part of the state.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeChar(state);
+        out.writeChar(error);
+        out.writeBoolean(interruptsEnabled);
+        out.writeChar(message);
+        out.writeInt(track);
+        out.writeInt(operation.type);
+        out.writeInt(operation.sector);
+        out.writeInt(operation.memory);
+        out.writeLong(completion == null ? -1 : completion.getTime() - dcpu.getTime());
+    }
+
+    /**
+     * Restores the drive registers. If no disk is inserted the drive comes
+     * back empty and idle whatever the saved state was.
+     */
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        state = in.readChar();
+        error = in.readChar();
+        interruptsEnabled = in.readBoolean();
+        message = in.readChar();
+        track = in.readInt();
+        stop();
+        operation = new FloppyOperation(in.readInt(), in.readInt(), in.readInt());
+        long remaining = in.readLong();
+        if (floppy == null) {
+            state = STATE_NO_MEDIA;
+            operation = new FloppyOperation(FloppyOperation.NONE, 0, 0);
+        } else if (operation.type != FloppyOperation.NONE && remaining >= 0) {
+            completion = dcpu.schedule(dcpu.getTime() + remaining, complete);
+        }
     }
 
     @Override
@@ -1,5 +1,11 @@
 package org.megastage.emulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 public class VirtualKeyboard extends DCPUHardware {
     private char[] keyBuffer = new char[64];
     private int krp;
@@ -8,6 +14,13 @@ public class VirtualKeyboard extends DCPUHardware {
     private char interruptMessage;
     private boolean doInterrupt;
 
+    // Events posted from other threads, applied on the next frame boundary
+    private final ConcurrentLinkedQueue<InputLog.Event> posted = new ConcurrentLinkedQueue<InputLog.Event>();
+    private InputLog recording;
+    private List<InputLog.Event> replay;
+    private int replayIndex;
+    private long frame;
+
     public VirtualKeyboard() {
         super(0x30cf7406, 0x1337, 0x1EB37E91);
     }
@@ -41,6 +54,49 @@ public class VirtualKeyboard extends DCPUHardware {
         doInterrupt = true;
     }
 
+    /**
+     * Queues a key press from any thread. It takes effect at the end of the
+     * current frame, in tick60hz(), which keeps runs reproducible.
+     */
+    public void postKeyPressed(int keyCode, char keyChar) {
+        posted.add(new InputLog.Event(-1, true, keyCode, keyChar));
+    }
+
+    public void postKeyReleased(int keyCode, char keyChar) {
+        posted.add(new InputLog.Event(-1, false, keyCode, keyChar));
+    }
+
+    /**
+     * Starts adding every posted event to log, stamped with its frame. Frames
+     * are counted from here. null stops recording.
+     */
+    public void record(InputLog log) {
+        recording = log;
+        frame = 0;
+    }
+
+    /**
+     * Starts applying the events of log at their frames, counted from here.
+     * Posted events are dropped while the replay runs. null stops replay.
+     */
+    public void replay(InputLog log) {
+        replay = log == null ? null : log.getEvents();
+        replayIndex = 0;
+        frame = 0;
+    }
+
+    public boolean isReplayFinished() {
+        return replay == null || replayIndex >= replay.size();
+    }
+
+    private void apply(InputLog.Event event) {
+        if (event.pressed) {
+            keyPressed(event.keyCode, event.keyChar);
+        } else {
+            keyReleased(event.keyCode, event.keyChar);
+        }
+    }
+
     public void interrupt() {
         int a = dcpu.registers[0];
         if (a == 0) {
@@ -66,13 +122,66 @@ public class VirtualKeyboard extends DCPUHardware {
         }
     }
 
+    /**
+     * Reading a key is idempotent only while the buffer is empty, so a loop
+     * that drains repeated keys is never skipped.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return dcpu.registers[0] != 1 || keyBuffer[(krp & 0x3F)] == 0;
+    }
+
     public void tick60hz() {
+        if (replay != null) {
+            posted.clear();
+            while (replayIndex < replay.size() && replay.get(replayIndex).frame <= frame) {
+                apply(replay.get(replayIndex++));
+            }
+        } else {
+            InputLog.Event event;
+            while ((event = posted.poll()) != null) {
+                apply(event);
+                if (recording != null) {
+                    recording.add(new InputLog.Event(frame, event.pressed, event.keyCode, event.keyChar));
+                }
+            }
+        }
+        frame++;
+
         if (doInterrupt) {
             if (interruptMessage != 0) dcpu.interrupt(interruptMessage);
             doInterrupt = false;
         }
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        for (int i = 0; i < keyBuffer.length; i++) {
+            out.writeChar(keyBuffer[i]);
+        }
+        out.writeInt(krp);
+        out.writeInt(kwp);
+        for (int i = 0; i < isDown.length; i++) {
+            out.writeBoolean(isDown[i]);
+        }
+        out.writeChar(interruptMessage);
+        out.writeBoolean(doInterrupt);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        for (int i = 0; i < keyBuffer.length; i++) {
+            keyBuffer[i] = in.readChar();
+        }
+        krp = in.readInt();
+        kwp = in.readInt();
+        for (int i = 0; i < isDown.length; i++) {
+            isDown[i] = in.readBoolean();
+        }
+        interruptMessage = in.readChar();
+        doInterrupt = in.readBoolean();
+    }
+
     private char dcpuChar(int keyCode, char keyChar) {
         if(keyChar >= 0x20 && keyChar < 0x79) {
             return keyChar;
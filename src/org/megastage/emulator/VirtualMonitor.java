@@ -1,46 +1,71 @@
 package org.megastage.emulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.imageio.ImageIO;
-
+/**
+ * The LEM1802 monitor.
+ *
+ * At every frame end the CPU thread copies the screen, font and palette
+ * memory into a ScreenFrame and publishes it, and render() draws the newest
+ * frame published. Three frames are handed round, so neither thread ever
+ * waits for the other: the CPU thread fills the back frame and swaps it
+ * with the ready one, and render() swaps its front frame with the ready one
+ * when that is newer. render() and setPixels() belong to one thread, the one
+ * that shows the pixels.
+ *
+ * For tests and bots that only need the text, getScreenText() reads the
+ * screen words straight from RAM without any pixel work, and
+ * waitForText() sleeps until a write to the screen memory makes the text
+ * appear.
+ */
 public class VirtualMonitor extends DCPUHardware
 {
-    private int[] palette = new int[16];
-    private char[] font = new char[256];
-    public int[] pixels = new int[12289];
-    private int screenMemMap;
-    private int fontMemMap;
-    private int paletteMemMap;
-    private int borderColor = 0;
-
-    public VirtualMonitor() {
-        super(0x7349f615, 0x1802, 0x1c6c8b36);
-    }
-
-    private void resetFont() {
-        int[] pixels = new int[4096];
-        try {
-            ImageIO.read(VirtualMonitor.class.getResource("/font.png")).getRGB(0, 0, 128, 32, pixels, 0, 128);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Built-in LEM1802 font, two words per glyph, as packed from /font.png.
+     * Kept as a table so that a monitor never needs ImageIO or java.awt.
+     * Shared by all monitors and never written.
+     */
+    private static final char[] DEFAULT_FONT = {
+            0xb79e, 0x388e, 0x722c, 0x75f4, 0x19bb, 0x7f8f, 0x85f9, 0xb158,
+            0x242e, 0x2400, 0x082a, 0x0800, 0x0008, 0x0000, 0x0808, 0x0808,
+            0x00ff, 0x0000, 0x00f8, 0x0808, 0x08f8, 0x0000, 0x080f, 0x0000,
+            0x000f, 0x0808, 0x00ff, 0x0808, 0x08f8, 0x0808, 0x08ff, 0x0000,
+            0x080f, 0x0808, 0x08ff, 0x0808, 0x6633, 0x99cc, 0x9933, 0x66cc,
+            0xfef8, 0xe080, 0x7f1f, 0x0701, 0x0107, 0x1f7f, 0x80e0, 0xf8fe,
+            0x5500, 0xaa00, 0x55aa, 0x55aa, 0xffaa, 0xff55, 0x0f0f, 0x0f0f,
+            0xf0f0, 0xf0f0, 0x0000, 0xffff, 0xffff, 0x0000, 0xffff, 0xffff,
+            0x0000, 0x0000, 0x005f, 0x0000, 0x0300, 0x0300, 0x3e14, 0x3e00,
+            0x266b, 0x3200, 0x611c, 0x4300, 0x3629, 0x7650, 0x0002, 0x0100,
+            0x1c22, 0x4100, 0x4122, 0x1c00, 0x1408, 0x1400, 0x081c, 0x0800,
+            0x4020, 0x0000, 0x0808, 0x0800, 0x0040, 0x0000, 0x601c, 0x0300,
+            0x3e49, 0x3e00, 0x427f, 0x4000, 0x6259, 0x4600, 0x2249, 0x3600,
+            0x0f08, 0x7f00, 0x2745, 0x3900, 0x3e49, 0x3200, 0x6119, 0x0700,
+            0x3649, 0x3600, 0x2649, 0x3e00, 0x0024, 0x0000, 0x4024, 0x0000,
+            0x0814, 0x2200, 0x1414, 0x1400, 0x2214, 0x0800, 0x0259, 0x0600,
+            0x3e59, 0x5e00, 0x7e09, 0x7e00, 0x7f49, 0x3600, 0x3e41, 0x2200,
+            0x7f41, 0x3e00, 0x7f49, 0x4100, 0x7f09, 0x0100, 0x3e41, 0x7a00,
+            0x7f08, 0x7f00, 0x417f, 0x4100, 0x2040, 0x3f00, 0x7f08, 0x7700,
+            0x7f40, 0x4000, 0x7f06, 0x7f00, 0x7f01, 0x7e00, 0x3e41, 0x3e00,
+            0x7f09, 0x0600, 0x3e61, 0x7e00, 0x7f09, 0x7600, 0x2649, 0x3200,
+            0x017f, 0x0100, 0x3f40, 0x7f00, 0x1f60, 0x1f00, 0x7f30, 0x7f00,
+            0x7708, 0x7700, 0x0778, 0x0700, 0x7149, 0x4700, 0x007f, 0x4100,
+            0x031c, 0x6000, 0x417f, 0x0000, 0x0201, 0x0200, 0x8080, 0x8000,
+            0x0001, 0x0200, 0x2454, 0x7800, 0x7f44, 0x3800, 0x3844, 0x2800,
+            0x3844, 0x7f00, 0x3854, 0x5800, 0x087e, 0x0900, 0x4854, 0x3c00,
+            0x7f04, 0x7800, 0x047d, 0x0000, 0x2040, 0x3d00, 0x7f10, 0x6c00,
+            0x017f, 0x0000, 0x7c18, 0x7c00, 0x7c04, 0x7800, 0x3844, 0x3800,
+            0x7c14, 0x0800, 0x0814, 0x7c00, 0x7c04, 0x0800, 0x4854, 0x2400,
+            0x043e, 0x4400, 0x3c40, 0x7c00, 0x1c60, 0x1c00, 0x7c30, 0x7c00,
+            0x6c10, 0x6c00, 0x4c50, 0x3c00, 0x6454, 0x4c00, 0x0836, 0x4100,
+            0x0077, 0x0000, 0x4136, 0x0800, 0x0201, 0x0201, 0x0205, 0x0200
+    };
 
-        for (int c = 0; c < 128; c++) {
-            int ro = c * 2;
-            int xo = c % 32 * 4;
-            int yo = c / 32 * 8;
-            for (int xx = 0; xx < 4; xx++) {
-                int bb = 0;
-                for (int yy = 0; yy < 8; yy++)
-                    if ((pixels[(xo + xx + (yo + yy) * 128)] & 0xFF) > 128)
-                        bb |= 1 << yy;
-                font[ro + xx / 2] = (char)(font[ro + xx / 2] | bb << (xx + 1 & 0x1) * 8);
-            }
-        }
-    }
+    private static final int[] DEFAULT_PALETTE = new int[16];
 
-    private void resetPalette() {
+    static {
         for (int i = 0; i < 16; i++) {
             int b = (i >> 0 & 0x1) * 170;
             int g = (i >> 1 & 0x1) * 170;
@@ -52,30 +77,118 @@ public class VirtualMonitor extends DCPUHardware
                 g += 85;
                 b += 85;
             }
-            palette[i] = (0xFF000000 | r << 16 | g << 8 | b);
+            DEFAULT_PALETTE[i] = (0xFF000000 | r << 16 | g << 8 | b);
         }
     }
 
-    private void resetPixels() {
-        for (int i = 0; i < 12289; i++) {
-            pixels[i] = 0;
+    // Enough for a different screen on each of a few hundred monitors
+    private static final TileCache TILES = new TileCache(8192);
+
+    private int[] palette = new int[16];
+    // The palette as 12-bit colours, for the tile keys
+    private final int[] colors = new int[16];
+    public int[] pixels = new int[12289];
+
+    // What the pixels currently show, so that render() only redraws changes
+    private final char[] cells = new char[384];
+    private final char[] glyphs = new char[256];
+    private final boolean[] dirtyGlyphs = new boolean[128];
+    private boolean lastBlink;
+    private long lastScreenGeneration = -1;
+    private int lastScreenMemMap;
+    private boolean blank;
+    private boolean fullRedraw = true;
+    private int lastResets;
+
+    private ScreenFrame back = new ScreenFrame();
+    private final AtomicReference<ScreenFrame> ready = new AtomicReference<ScreenFrame>(new ScreenFrame());
+    private ScreenFrame front = new ScreenFrame();
+    private long sequence;
+    private int resets;
+
+    // Writes to the screen memory and remaps, counted by screenWatcher
+    private volatile long textChanges;
+    private final Object textLock = new Object();
+    private volatile int textWaiters;
+    private final MemoryBus.Watcher screenWatcher = new MemoryBus.Watcher() {
+        @Override
+        public void written(int addr, int length) {
+            textChanged();
         }
+    };
+    private volatile int screenMemMap;
+    private int fontMemMap;
+    private int paletteMemMap;
+    private int borderColor = 0;
+
+    public VirtualMonitor() {
+        super(0x7349f615, 0x1802, 0x1c6c8b36);
     }
 
-    private void loadPalette(char[] ram, int offset) {
+    /**
+     * Copies the mapped memory into the back frame and makes it the ready
+     * one. Called on the CPU thread.
+     */
+    private void publish() {
+        ScreenFrame frame = back;
+        frame.blank = screenMemMap == 0;
+        if (frame.blank) {
+            frame.screenGeneration = -1;
+        } else {
+            // The frame may still hold this screen from two frames ago
+            long generation = dcpu.memory.getGeneration(screenMemMap, 384);
+            if (generation != frame.screenGeneration || screenMemMap != frame.screenMemMap) {
+                copy(screenMemMap, frame.screen);
+                frame.screenGeneration = generation;
+            }
+        }
+        frame.screenMemMap = screenMemMap;
+        if (fontMemMap == 0) {
+            System.arraycopy(DEFAULT_FONT, 0, frame.font, 0, 256);
+        } else {
+            copy(fontMemMap, frame.font);
+        }
         for (int i = 0; i < 16; i++) {
-            char ch = ram[(offset + i)];
-            int b = (ch >> '\000' & 0xF) * 17;
-            int g = (ch >> '\004' & 0xF) * 17;
-            int r = (ch >> '\b' & 0xF) * 17;
-            palette[i] = (0xFF000000 | r << 16 | g << 8 | b);
+            if (paletteMemMap == 0) {
+                frame.palette[i] = DEFAULT_PALETTE[i];
+            } else {
+                char ch = dcpu.ram[paletteMemMap + i & 0xFFFF];
+                int b = (ch >> 0 & 0xF) * 17;
+                int g = (ch >> 4 & 0xF) * 17;
+                int r = (ch >> 8 & 0xF) * 17;
+                frame.palette[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
         }
+        frame.border = borderColor;
+        frame.resets = resets;
+        frame.sequence = ++sequence;
+        back = ready.getAndSet(frame);
+    }
+
+    private void copy(int addr, char[] words) {
+        int length = Math.min(words.length, 0x10000 - addr);
+        System.arraycopy(dcpu.ram, addr, words, 0, length);
+        System.arraycopy(dcpu.ram, 0, words, length, words.length - length);
+    }
+
+    /**
+     * The newest frame the CPU thread published. The frame stays as it is
+     * until the next call. This is how render() reads the screen; a front-end
+     * that does not use render() may call it instead, but only from one
+     * thread.
+     */
+    public ScreenFrame getFrame() {
+        if (ready.get().sequence > front.sequence) {
+            front = ready.getAndSet(front);
+        }
+        return front;
     }
 
     public void interrupt() {
         int a = dcpu.registers[0];
         if (a == 0) {
             screenMemMap = dcpu.registers[1];
+            watchScreen();
         } else if (a == 1) {
             fontMemMap = dcpu.registers[1];
         } else if (a == 2) {
@@ -85,9 +198,10 @@ public class VirtualMonitor extends DCPUHardware
         } else if (a == 4) {
             // dump font
             int offs = dcpu.registers[1];
-            for (int i = 0; i < font.length; i++) {
-                dcpu.ram[(offs + i & 0xFFFF)] = font[i];
+            for (int i = 0; i < DEFAULT_FONT.length; i++) {
+                dcpu.ram[(offs + i & 0xFFFF)] = DEFAULT_FONT[i];
             }
+            dcpu.written(offs, DEFAULT_FONT.length);
             dcpu.cycles += 256;
         } else if (a == 5) {
             // dump palette
@@ -105,93 +219,256 @@ public class VirtualMonitor extends DCPUHardware
                 }
                 dcpu.ram[(offs + i & 0xFFFF)] = (char)(r << 8 | g << 4 | b);
             }
+            dcpu.written(offs, 16);
             dcpu.cycles += 16;
         }
     }
 
-    public void render() {
-        try {
-            synchronized (this) {
-                if (pixels != null) {
-                    if (screenMemMap == 0) {
-
-                        for (int y = 0; y < 96; y++) {
-                            for (int x = 0; x < 128; x++) {
-                                pixels[(x + y * 128)] = palette[0];
-                            }
-                        }
+    /**
+     * Mapping and dumping put the same values in the same places every time.
+     */
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
 
-                    } else {
-                        long time = System.currentTimeMillis() / 16L;
-                        boolean blink = time / 20L % 2L == 0L;
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(screenMemMap);
+        out.writeInt(fontMemMap);
+        out.writeInt(paletteMemMap);
+        out.writeInt(borderColor);
+    }
 
-                        char[] fontRam = font;
-                        int charOffset = 0;
-                        if (fontMemMap > 0) {
-                            fontRam = dcpu.ram;
-                            charOffset = fontMemMap;
-                        }
-                        if (paletteMemMap == 0)
-                            resetPalette();
-                        else {
-                            loadPalette(dcpu.ram, paletteMemMap);
-                        }
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        screenMemMap = in.readInt();
+        fontMemMap = in.readInt();
+        paletteMemMap = in.readInt();
+        borderColor = in.readInt();
+        watchScreen();
+        resets++;
+        publish();
+    }
+
+    @Override
+    public void tick60hz() {
+        publish();
+    }
+
+    /**
+     * The screen words as they are in RAM now, without any pixel work. All
+     * spaces while no screen memory is mapped. Safe to call from any thread;
+     * a frame the CPU is in the middle of writing may be seen half done.
+     */
+    public ScreenText getScreenText() {
+        long changes = textChanges;
+        char[] cells = new char[384];
+        int map = screenMemMap;
+        if (map != 0) {
+            for (int i = 0; i < 384; i++) {
+                cells[i] = dcpu.ram[map + i & 0xFFFF];
+            }
+        }
+        return new ScreenText(cells, changes);
+    }
+
+    /**
+     * Counts writes to the screen memory and changes of where it is mapped.
+     * While it stays the same, so does getScreenText().
+     */
+    public long getTextChanges() {
+        return textChanges;
+    }
+
+    /**
+     * Waits until text is on the screen, for at most timeout milliseconds.
+     * The screen is only looked at again after it was written, so waiting
+     * costs nothing while the guest does other work. The CPU must be running
+     * on another thread. Returns false on timeout.
+     */
+    public boolean waitForText(String text, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long changes = textChanges;
+            if (getScreenText().contains(text)) {
+                return true;
+            }
+            synchronized (textLock) {
+                textWaiters++;
+                try {
+                    while (textChanges == changes) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) return false;
+                        textLock.wait(left);
+                    }
+                } finally {
+                    textWaiters--;
+                }
+            }
+        }
+    }
+
+    private void watchScreen() {
+        dcpu.memory.removeWatcher(screenWatcher);
+        if (screenMemMap != 0) {
+            dcpu.memory.addWatcher(screenMemMap, 384, screenWatcher);
+        }
+        textChanged();
+    }
+
+    /**
+     * Called on the CPU thread.
+     */
+    private void textChanged() {
+        textChanges++;
+        if (textWaiters > 0) {
+            synchronized (textLock) {
+                textLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Redraws the cells that changed since the last call from the newest
+     * published frame. A cell is redrawn when its screen word, its glyph,
+     * one of its two palette entries or, for blinking cells, the blink phase
+     * changed. Returns true if any pixel was written.
+     */
+    public boolean render() {
+        boolean drawn = false;
+        try {
+            int[] pixels = this.pixels;
+            if (pixels != null) {
+                ScreenFrame frame = getFrame();
+                boolean redraw = fullRedraw || frame.resets != lastResets;
+                fullRedraw = false;
+                lastResets = frame.resets;
+                int dirtyColors = updatePalette(frame);
 
-                        for (int y = 0; y < 12; y++) {
-                            for (int x = 0; x < 32; x++) {
-                                char dat = dcpu.ram[screenMemMap + x + y * 32 & 0xFFFF];
-                                int ch = dat & 0x7F;
-                                int colorIndex = dat >> '\b' & 0xFF;
-                                int co = charOffset + ch * 2;
-
-                                int color = palette[(colorIndex & 0xF)];
-                                int colorAdd = palette[(colorIndex >> 4 & 0xF)] - color;
-                                if ((blink) && ((dat & 0x80) > 0)) colorAdd = 0;
-                                int pixelOffs = x * 4 + y * 8 * 128;
-
-                                for (int xx = 0; xx < 4; xx++) {
-                                    int bits = fontRam[(co + (xx >> 1))] >> (xx + 1 & 0x1) * 8 & 0xFF;
-                                    for (int yy = 0; yy < 8; yy++) {
-                                        int col = color + colorAdd * (bits >> yy & 0x1);
-                                        pixels[(pixelOffs + xx + yy * 128)] = col;
-                                    }
-                                }
-                            }
+                if (frame.blank) {
+                    if (!blank || redraw || (dirtyColors & 1) != 0) {
+                        for (int i = 0; i < 12288; i++) {
+                            pixels[i] = palette[0];
                         }
+                        blank = true;
+                        drawn = true;
+                    }
+                    return drawn;
+                }
+
+                long time = System.currentTimeMillis() / 16L;
+                boolean blink = time / 20L % 2L == 0L;
 
-                        int color = palette[borderColor];
-                        pixels[12288] = color;
+                boolean all = redraw || blank;
+                boolean blinkChanged = blink != lastBlink;
+                boolean fontChanged = updateGlyphs(frame);
 
+                // Skip the compare when no screen word was written since the last render
+                boolean screenChanged = frame.screenGeneration != lastScreenGeneration || frame.screenMemMap != lastScreenMemMap;
+                lastScreenGeneration = frame.screenGeneration;
+                lastScreenMemMap = frame.screenMemMap;
+
+                if (all || screenChanged || fontChanged || dirtyColors != 0 || blinkChanged) {
+                    for (int i = 0; i < 384; i++) {
+                        char dat = frame.screen[i];
+                        if (!all && dat == cells[i]
+                                && !(fontChanged && dirtyGlyphs[dat & 0x7F])
+                                && (dirtyColors >> (dat >> 8 & 0xF) & 1) == 0
+                                && (dirtyColors >> (dat >> 12 & 0xF) & 1) == 0
+                                && !(blinkChanged && (dat & 0x80) != 0)) {
+                            continue;
+                        }
+                        cells[i] = dat;
+                        drawCell(pixels, i & 31, i >> 5, dat, blink);
+                        drawn = true;
                     }
                 }
+
+                if (pixels[12288] != palette[frame.border]) {
+                    pixels[12288] = palette[frame.border];
+                    drawn = true;
+                }
+                lastBlink = blink;
+                blank = false;
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return drawn;
+    }
+
+    /**
+     * Loads the frame's palette and returns a bit mask of the entries whose
+     * colour changed.
+     */
+    private int updatePalette(ScreenFrame frame) {
+        int dirty = 0;
+        for (int i = 0; i < 16; i++) {
+            int color = frame.palette[i];
+            if (palette[i] != color) {
+                palette[i] = color;
+                colors[i] = TileCache.color(color);
+                dirty |= 1 << i;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Copies the frame's font into glyphs and marks the characters whose bits
+     * changed. Returns true if any did.
+     */
+    private boolean updateGlyphs(ScreenFrame frame) {
+        boolean changed = false;
+        for (int i = 0; i < 256; i++) {
+            char word = frame.font[i];
+            boolean dirty = word != glyphs[i];
+            if ((i & 1) == 0) {
+                dirtyGlyphs[i >> 1] = dirty;
+            } else {
+                dirtyGlyphs[i >> 1] |= dirty;
+            }
+            if (dirty) {
+                glyphs[i] = word;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void drawCell(int[] pixels, int x, int y, char dat, boolean blink) {
+        int co = (dat & 0x7F) * 2;
+        int bg = dat >> 8 & 0xF;
+        int fg = dat >> 12 & 0xF;
+        if ((blink) && ((dat & 0x80) > 0)) fg = bg;
+
+        long key = TileCache.key(glyphs[co], glyphs[co + 1], colors[fg], colors[bg]);
+        TILES.draw(key, pixels, x * 4 + y * 8 * 128, 128);
     }
 
     public void setPixels(int[] pixels)
     {
-        synchronized (this) {
+        if (this.pixels != pixels) {
             this.pixels = pixels;
+            fullRedraw = true;
         }
     }
 
     @Override
     public void powerOff() {
         screenMemMap = 0;
+        watchScreen();
         fontMemMap = 0;
         paletteMemMap = 0;
         borderColor = 0;
-        resetPalette();
-        resetFont();
-        resetPixels();
+        resets++;
+        publish();
     }
 
     @Override
     public void powerOn() {
-        resetPalette();
-        resetFont();
-        resetPixels();
+        resets++;
+        publish();
     }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs random programs on two machines, one through tick() only and one with
+ * the recompiler, and checks after every step that they are in the same
+ * state.
+ */
+public class BlockCompilerTest {
+    private static final int ENTRY = 0x100;
+    private static final int PROGRAMS = 300;
+
+    private static final int[] BASIC = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 26, 27, 30, 31};
+    private static final int[] CONDITIONAL = {16, 17, 18, 19, 20, 21, 22, 23};
+
+    @Test
+    public void compiledFramesMatchInterpreter() {
+        Random random = new Random(1802);
+        int compiled = 0;
+        for (int program = 0; program < PROGRAMS; program++) {
+            long seed = random.nextLong();
+            DCPU interpreted = machine(seed, false);
+            DCPU recompiled = machine(seed, true);
+            for (int frame = 0; frame < 6; frame++) {
+                interpreted.runFrame();
+                recompiled.runFrame();
+                assertSameState("program " + program + " frame " + frame, interpreted, recompiled);
+            }
+            compiled += recompiled.getCompiler().getCompiled();
+        }
+        assertTrue("no blocks were compiled", compiled > PROGRAMS);
+    }
+
+    @Test
+    public void compiledBlocksStopAtLimitLikeInterpreter() {
+        Random random = new Random(16);
+        for (int program = 0; program < PROGRAMS; program++) {
+            long seed = random.nextLong();
+            DCPU interpreted = machine(seed, false);
+            DCPU recompiled = machine(seed, true);
+            for (int step = 0; step < 200; step++) {
+                int limit = interpreted.cycles + 1 + random.nextInt(64);
+                interpreted.execute(limit);
+                recompiled.execute(limit);
+                assertSameState("program " + program + " step " + step, interpreted, recompiled);
+            }
+        }
+    }
+
+    /**
+     * A machine with random registers and RAM, and at ENTRY a loop of random
+     * basic instructions. Conditionals never end the loop body, so a failed
+     * one skips into the first of two jumps back to ENTRY.
+     */
+    private static DCPU machine(long seed, boolean recompiling) {
+        Random random = new Random(seed);
+        DCPU dcpu = new DCPU();
+        dcpu.setRecompiling(recompiling);
+        dcpu.setIdleSkipping(false);
+        // Stores into the loop can make an INT loop; dropping keeps the run deterministic
+        dcpu.getInterruptQueue().setOverflow(InterruptQueue.Overflow.DROP);
+
+        for (int i = 0; i < dcpu.ram.length; i++) {
+            dcpu.ram[i] = (char) random.nextInt(0x10000);
+        }
+        for (int i = 0; i < 8; i++) {
+            dcpu.registers[i] = word(random);
+        }
+        dcpu.sp = (char) random.nextInt(0x10000);
+        dcpu.ex = (char) random.nextInt(0x10000);
+
+        int pc = ENTRY;
+        int count = 1 + random.nextInt(40);
+        for (int i = 0; i < count; i++) {
+            int cmd = random.nextInt(8) == 0 && i < count - 1
+                    ? CONDITIONAL[random.nextInt(CONDITIONAL.length)]
+                    : BASIC[random.nextInt(BASIC.length)];
+            int a = random.nextInt(0x40);
+            int b = random.nextInt(0x20);
+            if (b == 0x1C) b = 0x1D; // keep PC out of the body
+            dcpu.ram[pc++] = (char) (cmd | b << 5 | a << 10);
+            if (hasNextWord(a)) dcpu.ram[pc++] = word(random);
+            if (hasNextWord(b)) dcpu.ram[pc++] = word(random);
+        }
+        for (int i = 0; i < 2; i++) {
+            dcpu.ram[pc++] = (char) (0x01 | 0x1C << 5 | 0x1F << 10);
+            dcpu.ram[pc++] = (char) ENTRY;
+        }
+        dcpu.pc = ENTRY;
+        dcpu.written(0, dcpu.ram.length);
+        return dcpu;
+    }
+
+    /**
+     * Mostly small values, so that divisions, shifts and offsets see the
+     * interesting cases.
+     */
+    private static char word(Random random) {
+        return (char) (random.nextBoolean() ? random.nextInt(0x10000) : random.nextInt(40) - 8);
+    }
+
+    private static boolean hasNextWord(int type) {
+        return (type & 0xF8) == 0x10 || type == 0x1A || type == 0x1E || type == 0x1F;
+    }
+
+    private static void assertSameState(String message, DCPU expected, DCPU actual) {
+        assertEquals(message + ": pc", (int) expected.pc, (int) actual.pc);
+        assertEquals(message + ": sp", (int) expected.sp, (int) actual.sp);
+        assertEquals(message + ": ex", (int) expected.ex, (int) actual.ex);
+        assertEquals(message + ": ia", (int) expected.ia, (int) actual.ia);
+        assertEquals(message + ": cycles", expected.cycles, actual.cycles);
+        assertArrayEquals(message + ": registers", expected.registers, actual.registers);
+        assertArrayEquals(message + ": ram", expected.ram, actual.ram);
+    }
+}
@@ -0,0 +1,44 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DCPUHostTest {
+    /**
+     * A machine that throws stops, and the one worker keeps running the
+     * others.
+     */
+    @Test
+    public void failingMachineDoesNotStopTheWorker() throws Exception {
+        DCPUHost host = new DCPUHost(1);
+        DCPU broken = new DCPU();
+        broken.setSpeed(0);
+        new DCPUHardware(0, 0, 0) {
+            @Override
+            public void tick60hz() {
+                throw new IllegalStateException("broken device");
+            }
+        }.connectTo(broken);
+        DCPU working = new DCPU();
+        working.setSpeed(0);
+
+        DCPUHost.Guest failing = host.add(broken);
+        DCPUHost.Guest running = host.add(working);
+        host.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000L;
+            while ((!failing.isFailed() || running.getFrames() < 100) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(failing.isFailed());
+            long frames = running.getFrames();
+            Thread.sleep(100L);
+            assertTrue(running.getFrames() > frames);
+            assertFalse(running.isFailed());
+        } finally {
+            host.shutdown();
+        }
+    }
+}
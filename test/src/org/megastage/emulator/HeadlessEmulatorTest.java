@@ -0,0 +1,21 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeadlessEmulatorTest {
+    @Test
+    public void runEndsWithTheInput() throws Exception {
+        HeadlessEmulator emu = new HeadlessEmulator();
+        emu.setInput(new StringReader("abc"));
+        assertEquals("input ended", emu.run());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ramStopAddressMustBeInRam() {
+        new HeadlessEmulator().stopWhenRam(0x10000, (char) 0);
+    }
+}
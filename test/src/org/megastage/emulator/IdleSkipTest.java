@@ -0,0 +1,39 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdleSkipTest {
+    private static final char SET_A_1 = 0x8801;  // SET A, 1
+    private static final char HWI_0 = 0x8640;    // HWI 0
+    private static final char SET_PC_0 = 0x8781; // SET PC, 0
+
+    /**
+     * Every pass through the loop pops an 'a' and leaves the registers as the
+     * pass before did, so only the keyboard can tell that it is not idle.
+     * Skipping it would jump to the limit with keys still in the buffer.
+     */
+    @Test
+    public void loopDrainingRepeatedKeysIsNotSkipped() {
+        DCPU dcpu = new DCPU();
+        VirtualKeyboard keyboard = new VirtualKeyboard();
+        keyboard.connectTo(dcpu);
+        dcpu.ram[0] = SET_A_1;
+        dcpu.ram[1] = HWI_0;
+        dcpu.ram[2] = SET_PC_0;
+        dcpu.written(0, 3);
+        for (int i = 0; i < 5; i++) {
+            keyboard.keyPressed('A', 'a');
+            keyboard.keyReleased('A', 'a');
+        }
+
+        dcpu.execute(1000);
+
+        dcpu.registers[0] = 1;
+        keyboard.interrupt();
+        assertEquals("keys left in the buffer", 0, dcpu.registers[2]);
+        assertTrue("the drained loop was not skipped", dcpu.getIdleCycles() > 0);
+    }
+}
@@ -0,0 +1,84 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedFloppyDiskTest {
+    @Test
+    public void flushForcesWrittenSectors() throws Exception {
+        File image = File.createTempFile("floppy", ".bin");
+        image.deleteOnExit();
+        MappedFloppyDisk disk = new MappedFloppyDisk(image, false);
+        char[] words = new char[VirtualFloppyDrive.WORDS_PER_SECTOR];
+        int[] sectors = {3, 700, 1439};
+        for (int sector : sectors) {
+            words[0] = (char) sector;
+            words[511] = (char) ~sector;
+            disk.writeSector(sector, words, 0, words.length);
+        }
+        assertEquals(3, disk.getDirtySectors());
+
+        disk.flush();
+        assertEquals(0, disk.getDirtySectors());
+        disk.close();
+
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            for (int sector : sectors) {
+                file.seek(sector * 1024L);
+                assertEquals(sector, file.readChar());
+                file.seek(sector * 1024L + 1022);
+                assertEquals((char) ~sector, file.readChar());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void writesAreFlushedInTheBackground() throws Exception {
+        File image = File.createTempFile("floppy", ".bin");
+        image.deleteOnExit();
+        MappedFloppyDisk disk = new MappedFloppyDisk(image, false);
+        disk.writeSector(9, new char[VirtualFloppyDrive.WORDS_PER_SECTOR], 0, VirtualFloppyDrive.WORDS_PER_SECTOR);
+        assertEquals(1, disk.getDirtySectors());
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (disk.getDirtySectors() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertEquals(0, disk.getDirtySectors());
+        disk.close();
+    }
+
+    @Test
+    public void readsZerosPastTheEndOfAShortImage() throws Exception {
+        File image = File.createTempFile("floppy", ".bin");
+        image.deleteOnExit();
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        try {
+            for (int i = 0; i < 768; i++) {
+                file.writeChar(0x1802);
+            }
+        } finally {
+            file.close();
+        }
+        MappedFloppyDisk disk = new MappedFloppyDisk(image, true);
+        char[] words = new char[VirtualFloppyDrive.WORDS_PER_SECTOR];
+
+        disk.readSector(1, words, 0, words.length);
+        assertEquals(0x1802, words[255]);
+        assertEquals(0, words[256]);
+
+        Arrays.fill(words, (char) 0xFFFF);
+        disk.readSector(5, words, 0, words.length);
+        assertEquals(0, words[0]);
+        assertEquals(0, words[511]);
+        disk.close();
+    }
+}
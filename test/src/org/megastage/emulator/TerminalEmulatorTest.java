@@ -0,0 +1,41 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TerminalEmulatorTest {
+    private static final String ESC = "\u001B[";
+
+    /**
+     * Bit 7 of a screen word blinks, bit 15 is only the top foreground bit.
+     */
+    @Test
+    public void onlyTheBlinkBitBlinks() throws Exception {
+        DCPU dcpu = new DCPU();
+        VirtualMonitor monitor = new VirtualMonitor();
+        monitor.connectTo(dcpu);
+        dcpu.registers[0] = 0;
+        dcpu.registers[1] = 0x8000;
+        monitor.interrupt();
+        dcpu.ram[0] = 0x8781; // SET PC, 0
+        dcpu.ram[0x8000] = 0xF041; // white 'A' on black
+        dcpu.ram[0x8001] = 0x70C2; // blinking grey 'B' on black
+        dcpu.written(0, 0x10000);
+        dcpu.runFrame();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TerminalEmulator(monitor, new VirtualKeyboard(), out, false).update();
+        String text = out.toString("US-ASCII");
+
+        int a = text.indexOf('A');
+        int b = text.indexOf('B');
+        assertTrue(a > 0 && b > a);
+        String before = text.substring(0, a);
+        assertFalse(before.substring(before.lastIndexOf(ESC)).startsWith(ESC + "0;5;"));
+        assertTrue(text.substring(a, b).startsWith("A" + ESC + "0;5;"));
+    }
+}
@@ -0,0 +1,57 @@
+package org.megastage.emulator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TileCacheTest {
+    /**
+     * A cache much smaller than the set of keys evicts on almost every
+     * draw, and must still draw every tile right.
+     */
+    @Test
+    public void drawsTheRightTileWhileEvicting() {
+        TileCache cache = new TileCache(5);
+        Random random = new Random(1802);
+        int[] pixels = new int[32];
+        for (int i = 0; i < 20000; i++) {
+            char left = (char) random.nextInt(12);
+            char right = (char) (random.nextInt(3) << 8);
+            int fg = random.nextInt(3) * 0x555;
+            int bg = 0xFFF - fg;
+            cache.draw(TileCache.key(left, right, fg, bg), pixels, 0, 4);
+            for (int xx = 0; xx < 4; xx++) {
+                int bits = (xx < 2 ? left : right) >> (xx + 1 & 0x1) * 8 & 0xFF;
+                for (int yy = 0; yy < 8; yy++) {
+                    int color = (bits >> yy & 0x1) != 0 ? fg : bg;
+                    assertEquals("draw " + i, color, TileCache.color(pixels[xx + yy * 4]));
+                }
+            }
+        }
+    }
+
+    /**
+     * After any amount of evicting, a set of keys that fits stays cached.
+     */
+    @Test
+    public void keepsKeysThatFit() {
+        TileCache cache = new TileCache(64);
+        Random random = new Random(16);
+        int[] pixels = new int[32];
+        for (int i = 0; i < 5000; i++) {
+            cache.draw(TileCache.key((char) random.nextInt(500), (char) 0, 0xFFF, 0), pixels, 0, 4);
+        }
+        for (char c = 0; c < 64; c++) {
+            cache.draw(TileCache.key(c, (char) 0, 0, 0xFFF), pixels, 0, 4);
+        }
+        long misses = cache.getMisses();
+        for (int i = 0; i < 10; i++) {
+            for (char c = 0; c < 64; c++) {
+                cache.draw(TileCache.key(c, (char) 0, 0, 0xFFF), pixels, 0, 4);
+            }
+        }
+        assertEquals(misses, cache.getMisses());
+    }
+}